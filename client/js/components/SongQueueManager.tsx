@@ -3,7 +3,7 @@ import {connect} from "react-redux";
 import {Actions, InternalState, ISTATE, SongProgress} from "../reduxish/store";
 import {SongData} from "../reduxish/SongData";
 import {Button, ButtonGroup, Col, Form, FormGroup, Input, Label, Progress, Row} from 'reactstrap';
-import {getApi, SongQueuedEvent} from "../websocket/api";
+import {getApi, ImportProgressEvent, SongQueuedEvent} from "../websocket/api";
 import {AvailableChannelSelector} from "./ChannelSelector";
 import {Slider} from "./Slider";
 
@@ -37,15 +37,63 @@ const SongAddForm = (props: { guildId: string }) => {
     </Form>;
 };
 
-const SongQueueItem = (props: { guildId: string, song: QueuedSongData, progress: number }) => {
+const SongImportItem = (props: { guildId: string, songImport: ImportProgressEvent }) => {
+    const songImport = props.songImport;
+    const cancelHandler = () => {
+        getApi().then(api => api.cancelImport(props.guildId, songImport.importId));
+    };
+    const total = songImport.total === null ? '?' : songImport.total;
+    return <li className="list-group-item d-flex align-items-center">
+        <div className="flex-grow-1 mr-3">
+            <h6 className="commutext small">
+                Adding songs from {songImport.submitter}: {songImport.queued} / {total}
+            </h6>
+            <Progress animated color="info" value={songImport.queued} max={songImport.total || 0}/>
+        </div>
+        <Button color="danger" size="sm" title="Stop adding songs" onClick={cancelHandler}>
+            <i className="fa fa-times"/>
+        </Button>
+    </li>;
+};
+
+const SongImportListDisplay = (props: { guildId: string, songImports: ImportProgressEvent[] }) => {
+    return <ul className="list-group mb-3">
+        {props.songImports.map(si =>
+            <SongImportItem key={si.importId} guildId={props.guildId} songImport={si}/>
+        )}
+    </ul>;
+};
+
+const SongImportList = connect((ISTATE: InternalState) => {
+    if (typeof ISTATE.guild === "undefined") {
+        throw new Error("no u");
+    }
+    const songImports = ISTATE.songImports;
+    return {
+        songImports: Object.keys(songImports).map(importId => songImports[importId]),
+        guildId: ISTATE.guild.instance.id
+    };
+})(SongImportListDisplay);
+
+const SongQueueItem = (props: { guildId: string, song: QueuedSongData, progress: number, seekable: boolean }) => {
     let thumbnail = props.song.thumbnail;
+    const seekHandler = (e: React.MouseEvent<HTMLDivElement>) => {
+        const bounds = e.currentTarget.getBoundingClientRect();
+        const fraction = (e.clientX - bounds.left) / bounds.width;
+        const positionMs = Math.round(fraction * props.song.duration);
+        getApi().then(api => api.seekSong(props.guildId, props.song.id, positionMs));
+    };
     return <li className="list-group-item">
         <div className="bg-success rounded p-1">
             <div className="my-2 rounded border-primary border mx-auto"
                  style={{width: thumbnail.width, boxSizing: 'content-box'}}>
                 <img className="" src={thumbnail.url} height={thumbnail.height} alt=""/>
 
-                <Progress animated color="warning" className="rounded-0 bg-light" value={props.progress} max={1000}/>
+                <div onClick={props.seekable ? seekHandler : undefined}
+                     style={props.seekable ? {cursor: 'pointer'} : undefined}
+                     title={props.seekable ? "Seek" : undefined}>
+                    <Progress animated color="warning" className="rounded-0 bg-light" value={props.progress} max={1000}/>
+                </div>
             </div>
             <div className="d-flex flex-column align-items-start justify-content-start w-100 px-3">
                 <h6 className="commutext text-light w-100"
@@ -73,9 +121,14 @@ const SongQueueListDisplay = (props: { guildId: string, queuedSongs: QueuedSongD
     return <ul className="list-group">
         {props.queuedSongs.map(qs => {
             let sp = props.songProgress;
+            // the queue is fair between users, so the playing song isn't always first
+            const playing = sp !== undefined && sp.songId === qs.id;
             // multiply progress up to 1000 for precision
-            const progress = (sp && sp.songId === qs.id) ? sp.progress * 10 : 0;
-            return <SongQueueItem key={qs.id} song={qs} progress={progress} guildId={props.guildId}/>;
+            const progress = (sp && playing) ? sp.progress * 10 : 0;
+            // only the playing song can seek, and only with a known length
+            const seekable = playing && qs.duration > 0 && qs.duration !== 2147483647;
+            return <SongQueueItem key={qs.id} song={qs} progress={progress} seekable={seekable}
+                                  guildId={props.guildId}/>;
         })}
     </ul>;
 };
@@ -146,6 +199,7 @@ export default (props: { guildId: string }) => {
                 <SongControls guildId={props.guildId}/>
             </div>
             <SongAddForm guildId={props.guildId}/>
+            <SongImportList/>
             <SongQueueList/>
         </Col>
     </Row>;
@@ -8,4 +8,6 @@ export interface SongData {
     id: string
     name: string
     thumbnail: Thumbnail
+    /** in milliseconds */
+    duration: number
 }
\ No newline at end of file
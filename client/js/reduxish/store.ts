@@ -3,12 +3,14 @@ import {annotateFunctions, createSliceDistributor, SliceMap} from "./slicing";
 import {SongData} from "./SongData";
 import {DiscordChannel, DiscordGuild, DiscordInformation, GuildInformation} from "./discord";
 import {observeStoreSlice} from "./reduxObservers";
-import {getApi, initializeApi, SongQueuedEvent} from "../websocket/api";
+import {getApi, ImportProgressEvent, initializeApi, SongQueuedEvent, SongsQueuedEvent} from "../websocket/api";
 import {LSConst} from "../lsConst";
 import {optional} from "../optional";
 
 type SongDataCache = { [songKey: string]: SongData };
 
+type SongImports = { [importId: string]: ImportProgressEvent };
+
 export interface SongProgress {
     songId: string
     progress: number
@@ -19,6 +21,7 @@ export interface InternalState {
     guild?: GuildInformation
     discordGuilds: DiscordGuild[]
     songQueue: Array<SongQueuedEvent>
+    songImports: SongImports
     songProgress?: SongProgress
     volume?: number
     songDataCache: SongDataCache
@@ -27,6 +30,7 @@ export interface InternalState {
 const defaultState: InternalState = {
     discordGuilds: [],
     songQueue: [],
+    songImports: {},
     songDataCache: {}
 };
 
@@ -71,6 +75,22 @@ export const Actions = annotateFunctions({
     queueSong: (prevState: Array<SongQueuedEvent>, payload: SongQueuedEvent) => {
         return prevState.concat(payload);
     },
+    queueSongs: (prevState: Array<SongQueuedEvent>, payload: SongsQueuedEvent) => {
+        return prevState.concat(payload.youtubeIds.map(youtubeId => ({
+            youtubeId: youtubeId,
+            submitter: payload.submitter
+        })));
+    },
+    updateImport: (prevState: SongImports, payload: ImportProgressEvent) => {
+        const imports = {...prevState};
+        if (payload.state === 'LOADING') {
+            imports[payload.importId] = payload;
+        } else {
+            // finished imports have nothing left to show
+            delete imports[payload.importId];
+        }
+        return imports;
+    },
     popSong: (prevState: Array<SongQueuedEvent>, payload: string) => {
         return prevState.filter(s => s.youtubeId !== payload);
     },
@@ -99,8 +119,12 @@ const slices: SliceMap<InternalState> = {
     ],
     songQueue: [
         Actions.queueSong,
+        Actions.queueSongs,
         Actions.popSong
     ],
+    songImports: [
+        Actions.updateImport
+    ],
     songProgress: [
         Actions.updateProgress
     ],
@@ -168,6 +192,14 @@ observeStoreSlice(ISTATE, state => optional(state).map(s => s.guild).map(g => g.
                     .catch(err => console.error('error getting data for', queueEvent, err));
                 ISTATE.dispatch(Actions.queueSong(queueEvent));
             },
+            queuedBatch(queueEvent) {
+                queueEvent.youtubeIds.forEach(youtubeId => getSongData(youtubeId)
+                    .catch(err => console.error('error getting data for', youtubeId, err)));
+                ISTATE.dispatch(Actions.queueSongs(queueEvent));
+            },
+            importProgress(event) {
+                ISTATE.dispatch(Actions.updateImport(event));
+            },
             popped(event) {
                 const song = event.songId;
                 ISTATE.dispatch(Actions.popSong(song));
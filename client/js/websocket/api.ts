@@ -11,6 +11,27 @@ export interface SongQueuedCallback {
     (event: SongQueuedEvent): void
 }
 
+export type SongsQueuedEvent = {
+    youtubeIds: string[],
+    submitter: string
+}
+
+export interface SongsQueuedCallback {
+    (event: SongsQueuedEvent): void
+}
+
+export type ImportProgressEvent = {
+    importId: string,
+    submitter: string,
+    queued: number,
+    total: number | null,
+    state: 'LOADING' | 'DONE' | 'CANCELLED' | 'FAILED'
+}
+
+export interface ImportProgressCallback {
+    (event: ImportProgressEvent): void
+}
+
 export type SongPoppedEvent = {
     songId: string
 }
@@ -38,6 +59,8 @@ export interface SongVolumeCallback {
 
 export type SongQueueCallbacks = {
     queued: SongQueuedCallback,
+    queuedBatch: SongsQueuedCallback,
+    importProgress: ImportProgressCallback,
     popped: SongPoppedCallback,
     progress: SongProgressCallback,
     volume: SongVolumeCallback
@@ -79,6 +102,8 @@ class Api {
 
     subscribeSongQueue(guildId: string, callbacks: SongQueueCallbacks): void {
         this.rpc.register('songQueue.queued', callbacks.queued);
+        this.rpc.register('songQueue.queuedBatch', callbacks.queuedBatch);
+        this.rpc.register('songQueue.importProgress', callbacks.importProgress);
         this.rpc.register('songQueue.popped', callbacks.popped);
         this.rpc.register('songQueue.progress', callbacks.progress);
         this.rpc.register('songQueue.volume', callbacks.volume);
@@ -87,6 +112,8 @@ class Api {
 
     unsubscribeSongQueue(): void {
         this.rpc.remove('songQueue.queued');
+        this.rpc.remove('songQueue.queuedBatch');
+        this.rpc.remove('songQueue.importProgress');
         this.rpc.remove('songQueue.popped');
         this.rpc.remove('songQueue.progress');
         this.rpc.callFunction('songQueue.unsubscribe');
@@ -99,6 +126,13 @@ class Api {
         });
     }
 
+    cancelImport(guildId: string, importId: string): void {
+        this.rpc.callFunction('songQueue.cancelImport', {
+            guildId: guildId,
+            importId: importId
+        });
+    }
+
     private responseProtoToPromise<T>(event: string, argsMaker: (cbName: string) => any): Promise<T> {
         return new Promise<T>((resolve, reject) => {
             const cbName = this.rpc.createCallback(event, (response: Response<T>) => {
@@ -158,6 +192,14 @@ class Api {
         });
     }
 
+    seekSong(guildId: string, songId: string, positionMs: number): void {
+        this.rpc.callFunction('songQueue.seek', {
+            guildId: guildId,
+            songId: songId,
+            positionMs: positionMs
+        });
+    }
+
     setVolume(guildId: string, volume: number): void {
         this.rpc.callFunction('songQueue.setVolume', {
             guildId: guildId,
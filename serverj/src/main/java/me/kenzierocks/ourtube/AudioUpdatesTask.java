@@ -27,13 +27,14 @@ package me.kenzierocks.ourtube;
 
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 import discord4j.core.object.util.Snowflake;
 import org.slf4j.Logger;
 
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 
-import me.kenzierocks.ourtube.lava.OurTubeAudioProvider;
 import me.kenzierocks.ourtube.songprogress.SongProgress;
 import me.kenzierocks.ourtube.songprogress.SongProgressMap;
 
@@ -41,20 +42,41 @@ public class AudioUpdatesTask implements Runnable {
 
     private static final Logger LOGGER = Log.get();
 
+    private static final long UPDATE_INTERVAL_MS = 1000;
+
+    /**
+     * Told when playback gets close to the end of the track, and when a seek takes it away
+     * again. Pauses and seeks are followed, since it goes by the track's position.
+     */
+    public interface NearEndListener {
+
+        void nearEnd();
+
+        void leftNearEnd();
+
+    }
+
     private final AudioPlayer player;
-    private final OurTubeAudioProvider timeTracker;
     private final AudioTrack track;
     private final Snowflake guildId;
     private final String songId;
-    private final long initialMs;
+    private final long nearEndMs;
+    @Nullable
+    private final NearEndListener nearEndListener;
+    private boolean nearEnd;
 
-    public AudioUpdatesTask(AudioPlayer player, OurTubeAudioProvider timeTracker, AudioTrack track, Snowflake guildId, String songId) {
+    /**
+     * @param nearEndMs
+     *            how long before the end counts as near it
+     */
+    public AudioUpdatesTask(AudioPlayer player, AudioTrack track, Snowflake guildId, String songId,
+                            long nearEndMs, @Nullable NearEndListener nearEndListener) {
         this.player = player;
-        this.timeTracker = timeTracker;
         this.track = track;
         this.guildId = guildId;
         this.songId = songId;
-        this.initialMs = timeTracker.getDurationProvidedMs();
+        this.nearEndMs = nearEndMs;
+        this.nearEndListener = nearEndListener;
     }
 
     @Override
@@ -64,10 +86,30 @@ public class AudioUpdatesTask implements Runnable {
             return;
         }
 
-        double progress = (100 * (timeTracker.getDurationProvidedMs() - initialMs)) / (double) track.getDuration();
-        SongProgressMap.INSTANCE.setProgress(guildId, SongProgress.create(songId, progress));
+        // may only become known once the media's been probed
+        long duration = track.getDuration();
+        if (duration > 0 && duration != Integer.MAX_VALUE) {
+            // the timecode of the last frame sent, which the player counts from the
+            // track's own samples, so it follows seeks and ignores other tracks
+            long position = track.getPosition();
+            double progress = Math.min(100, (100 * position) / (double) duration);
+            SongProgressMap.INSTANCE.setProgress(guildId, SongProgress.create(songId, progress));
+            updateNearEnd(duration - position <= nearEndMs);
+        }
+
+        AsyncService.GENERIC.schedule(this, UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
 
-        AsyncService.GENERIC.schedule(this, track.getDuration() / 200, TimeUnit.MILLISECONDS);
+    private void updateNearEnd(boolean nowNearEnd) {
+        if (nearEndListener == null || nowNearEnd == nearEnd) {
+            return;
+        }
+        nearEnd = nowNearEnd;
+        if (nowNearEnd) {
+            nearEndListener.nearEnd();
+        } else {
+            nearEndListener.leftNearEnd();
+        }
     }
 
 }
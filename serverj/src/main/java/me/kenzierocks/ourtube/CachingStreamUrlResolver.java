@@ -0,0 +1,164 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Remembers resolved stream URLs until they expire, so replaying a song skips resolution.
+ *
+ * <p>
+ * YouTube puts the expiry time in the URL's {@code expire} parameter. An entry is used
+ * until shortly before then, or until it's {@linkplain #invalidate(String) refused}.
+ * </p>
+ */
+public class CachingStreamUrlResolver implements StreamUrlResolver {
+
+    private static final Logger LOGGER = Log.get();
+
+    // enough for a long song to be downloaded before the URL dies
+    private static final Duration EXPIRY_MARGIN = Duration.ofMinutes(10);
+    // for URLs without an expiry
+    private static final Duration DEFAULT_LIFETIME = Duration.ofMinutes(30);
+
+    @AutoValue
+    public abstract static class Stats {
+
+        public static Stats create(long hitCount, long missCount, long invalidationCount, long savedNanos) {
+            return new AutoValue_CachingStreamUrlResolver_Stats(hitCount, missCount, invalidationCount, savedNanos);
+        }
+
+        Stats() {
+        }
+
+        public abstract long hitCount();
+
+        public abstract long missCount();
+
+        public abstract long invalidationCount();
+
+        /**
+         * @return estimated time saved by hits, at the average resolution time
+         */
+        public abstract long savedNanos();
+
+        public final double hitRatio() {
+            long total = hitCount() + missCount();
+            return total == 0 ? 0 : (double) hitCount() / total;
+        }
+
+    }
+
+    @AutoValue
+    abstract static class Entry {
+
+        static Entry create(String url, Instant usableUntil) {
+            return new AutoValue_CachingStreamUrlResolver_Entry(url, usableUntil);
+        }
+
+        Entry() {
+        }
+
+        abstract String url();
+
+        abstract Instant usableUntil();
+
+    }
+
+    private final StreamUrlResolver delegate;
+    private final Cache<String, Entry> entries = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            // YouTube's URLs last about six hours
+            .expireAfterWrite(6, TimeUnit.HOURS)
+            .build();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+    private final AtomicLong resolveNanos = new AtomicLong();
+
+    public CachingStreamUrlResolver(StreamUrlResolver delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public String resolve(String videoId) throws IOException {
+        Entry entry = entries.getIfPresent(videoId);
+        if (entry != null && Instant.now().isBefore(entry.usableUntil())) {
+            hitCount.incrementAndGet();
+            LOGGER.debug("{}: stream URL cache hit", videoId);
+            return entry.url();
+        }
+        missCount.incrementAndGet();
+        long start = System.nanoTime();
+        String url = delegate.resolve(videoId);
+        resolveNanos.addAndGet(System.nanoTime() - start);
+        entries.put(videoId, Entry.create(url, usableUntil(url)));
+        LOGGER.debug("{}: stream URL resolved in {}ms", videoId,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return url;
+    }
+
+    private static Instant usableUntil(String url) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        String expire = parsed == null ? null : parsed.queryParameter("expire");
+        if (expire != null) {
+            try {
+                return Instant.ofEpochSecond(Long.parseLong(expire)).minus(EXPIRY_MARGIN);
+            } catch (NumberFormatException e) {
+                LOGGER.debug("Unreadable expiry in stream URL: {}", expire);
+            }
+        }
+        return Instant.now().plus(DEFAULT_LIFETIME);
+    }
+
+    @Override
+    public void invalidate(String videoId) {
+        if (entries.asMap().remove(videoId) != null) {
+            invalidationCount.incrementAndGet();
+        }
+        delegate.invalidate(videoId);
+    }
+
+    public Stats getStats() {
+        long misses = missCount.get();
+        long hits = hitCount.get();
+        long saved = misses == 0 ? 0 : resolveNanos.get() / misses * hits;
+        return Stats.create(hits, misses, invalidationCount.get(), saved);
+    }
+
+}
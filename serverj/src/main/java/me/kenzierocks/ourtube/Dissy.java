@@ -28,6 +28,7 @@ package me.kenzierocks.ourtube;
 import com.google.common.base.Throwables;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
@@ -39,34 +40,46 @@ import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import discord4j.core.DiscordClient;
 import discord4j.core.DiscordClientBuilder;
+import discord4j.core.event.domain.VoiceStateUpdateEvent;
 import discord4j.core.event.domain.guild.GuildCreateEvent;
+import discord4j.core.event.domain.guild.MemberChunkEvent;
+import discord4j.core.event.domain.guild.MemberLeaveEvent;
+import discord4j.core.event.domain.guild.MemberUpdateEvent;
+import discord4j.core.event.domain.lifecycle.ReconnectEvent;
+import discord4j.core.event.domain.lifecycle.ResumeEvent;
 import discord4j.core.event.domain.message.MessageCreateEvent;
+import discord4j.core.object.VoiceState;
 import discord4j.core.object.entity.Channel;
 import discord4j.core.object.entity.Guild;
 import discord4j.core.object.entity.GuildChannel;
-import discord4j.core.object.entity.Member;
 import discord4j.core.object.entity.Message;
 import discord4j.core.object.entity.MessageChannel;
 import discord4j.core.object.entity.VoiceChannel;
 import discord4j.core.object.util.Snowflake;
 import me.kenzierocks.ourtube.guildchannels.GuildChannels;
 import me.kenzierocks.ourtube.guildchannels.NewChannel;
+import me.kenzierocks.ourtube.guildvoice.VoiceMembership;
+import me.kenzierocks.ourtube.guildvoice.VoiceMove;
 import me.kenzierocks.ourtube.lava.OurTubeAudioProvider;
 import me.kenzierocks.ourtube.lava.OurTubeAudioSourceMananger;
+import me.kenzierocks.ourtube.lava.QueueEntry;
 import me.kenzierocks.ourtube.lava.TrackScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.function.Consumer;
-import java.util.function.Predicate;
 
 public class Dissy {
 
@@ -91,6 +104,10 @@ public class Dissy {
         return guildPlayers.computeIfAbsent(guildId, k -> manager.createPlayer());
     }
 
+    public static Map<Snowflake, AudioPlayer> getPlayers() {
+        return Collections.unmodifiableMap(guildPlayers);
+    }
+
     private static final Map<Snowflake, TrackScheduler> guildSchedulers = new ConcurrentHashMap<>();
 
     public static TrackScheduler getScheduler(Snowflake guildId) {
@@ -168,12 +185,6 @@ public class Dissy {
         return audioTrack;
     }
 
-    public static String getNameForUserInGuild(Snowflake guildId, Snowflake userId) {
-        return BOT.getMemberById(guildId, userId)
-            .map(Member::getDisplayName)
-            .block();
-    }
-
     static {
         BOT.getEventDispatcher().on(MessageCreateEvent.class).subscribe(event -> {
             Message message = event.getMessage();
@@ -189,6 +200,31 @@ public class Dissy {
                 .block();
         });
         BOT.getEventDispatcher().on(GuildCreateEvent.class).subscribe(guildSubscriber());
+        BOT.getEventDispatcher().on(MemberChunkEvent.class)
+            .subscribe(event -> event.getMembers().forEach(MemberNames.INSTANCE::memberSeen));
+        BOT.getEventDispatcher().on(MemberUpdateEvent.class)
+            .subscribe(event -> MemberNames.INSTANCE.invalidate(event.getGuildId(), event.getMemberId()));
+        BOT.getEventDispatcher().on(MemberLeaveEvent.class)
+            .subscribe(event -> MemberNames.INSTANCE.invalidate(event.getGuildId(), event.getUser().getId()));
+    }
+
+    private static void onVoiceMove(Snowflake guildId, VoiceMove move) {
+        ActiveConnection connection = guildConnections.get(guildId);
+        if (connection == null) {
+            return;
+        }
+        Snowflake channelId = connection.channel.getId();
+        boolean wasIn = channelId.equals(move.getOldChannelId());
+        boolean isIn = channelId.equals(move.getNewChannelId());
+        if (wasIn == isIn) {
+            return;
+        }
+        TrackScheduler sch = getScheduler(guildId);
+        if (isIn) {
+            sch.listenerJoined(move.getUserId());
+        } else {
+            sch.listenerLeft(move.getUserId());
+        }
     }
 
     private static final ExecutorService THREAD_POOL = Executors.newCachedThreadPool(
@@ -198,10 +234,53 @@ public class Dissy {
             .build()
     );
 
+    // applies voice updates one at a time, in gateway order.
+    // off the reactor threads, membership subscribers may block
+    private static final Executor VOICE_UPDATES = MoreExecutors.newSequentialExecutor(THREAD_POOL);
+
+    static {
+        BOT.getEventDispatcher().on(VoiceStateUpdateEvent.class).subscribe(event -> {
+            VoiceState current = event.getCurrent();
+            VOICE_UPDATES.execute(() -> VoiceMembership.INSTANCE.update(
+                current.getGuildId(), current.getUserId(), current.getChannelId().orElse(null)
+            ));
+        });
+        // updates may have been missed while disconnected
+        BOT.getEventDispatcher().on(ResumeEvent.class)
+            .subscribe(event -> VoiceMembership.INSTANCE.getKnownGuilds().forEach(Dissy::reconcileVoice));
+        BOT.getEventDispatcher().on(ReconnectEvent.class)
+            .subscribe(event -> VoiceMembership.INSTANCE.getKnownGuilds().forEach(Dissy::reconcileVoice));
+    }
+
+    /**
+     * Replace the voice membership of a guild with the client's view of it.
+     */
+    private static void reconcileVoice(Snowflake guildId) {
+        VOICE_UPDATES.execute(() -> {
+            // read in line with the updates, so it's never older than one already applied
+            Map<Snowflake, Snowflake> channelByUser = BOT.getGuildById(guildId)
+                .flatMapMany(Guild::getVoiceStates)
+                .filter(state -> state.getChannelId().isPresent())
+                .collectMap(VoiceState::getUserId, state -> state.getChannelId().get())
+                .block();
+            if (channelByUser != null) {
+                VoiceMembership.INSTANCE.reconcile(guildId, channelByUser);
+            }
+        });
+    }
+
     private static Consumer<GuildCreateEvent> guildSubscriber() {
         return event -> {
             Guild guild = event.getGuild();
             Snowflake guildId = guild.getId();
+            reconcileVoice(guildId);
+            VoiceMembership.INSTANCE.events.subscribe(guildId, new Object() {
+
+                @Subscribe
+                public void onVoiceMove(VoiceMove move) {
+                    Dissy.onVoiceMove(guildId, move);
+                }
+            });
             GuildChannels.INSTANCE.events.subscribe(guildId, new Object() {
 
                 @Subscribe
@@ -218,25 +297,28 @@ public class Dissy {
                     VoiceChannel voiceChannel = (VoiceChannel) channel;
                     voiceChannel
                         .join(spec -> spec.setProvider(getProvider(guildId)))
-                        // hop out of the reactor threads to allow block()
-                        .subscribe(voiceConnection -> THREAD_POOL.submit(() -> {
+                        // in line with voice updates, so none are missed after this
+                        .subscribe(voiceConnection -> VOICE_UPDATES.execute(() -> {
                             guildConnections.put(guildId, new ActiveConnection(
                                 voiceChannel, voiceConnection
                             ));
-                            getScheduler(guildId).nextTrack(true);
+                            Set<Snowflake> listeners = new HashSet<>(
+                                VoiceMembership.INSTANCE.getMembers(guildId, voiceChannel.getId())
+                            );
+                            // our own queue holds the start up sound
+                            BOT.getSelfId().ifPresent(listeners::add);
+                            TrackScheduler sch = getScheduler(guildId);
+                            sch.setListeners(listeners);
+                            sch.nextTrack(true);
                         }));
-                    TrackScheduler sch = getScheduler(guildId);
-                    sch.getAccessLock().lock();
-                    try {
-                        if (sch.allTracksStream()
-                            .map(AudioTrack::getUserData)
-                            .allMatch(Predicate.isEqual(startupFlag))) {
-                            // just start up sounds. queue another!
-                            sch.addTrack(BOT.getSelfId().orElseThrow(), getStartupSound());
-                        }
-                    } finally {
-                        sch.getAccessLock().unlock();
-                    }
+                    // if it's just start up sounds, queue another!
+                    getScheduler(guildId).addTrackIf(
+                        entries -> entries
+                            .map(QueueEntry::getLoadedTrack)
+                            .allMatch(track -> track != null && track.getUserData() == startupFlag),
+                        BOT.getSelfId().orElseThrow(),
+                        getStartupSound()
+                    );
                 }
             });
         };
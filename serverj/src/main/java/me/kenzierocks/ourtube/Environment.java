@@ -27,15 +27,53 @@ package me.kenzierocks.ourtube;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 // worlds worst env class
 public class Environment {
 
     public static final String YOUTUBE_API_KEY = System.getenv("YOUTUBE_API_KEY");
     public static final String DISCORD_TOKEN = System.getenv("DISCORD_TOKEN");
     public static final boolean INTERNAL_STREAMS_ERROR_OUTPUT = Boolean.valueOf(System.getenv("INTERNAL_STREAMS_ERROR_OUTPUT"));
+    public static final boolean DISABLE_OPUS_PASSTHROUGH = Boolean.valueOf(System.getenv("DISABLE_OPUS_PASSTHROUGH"));
+    // decode with the FFmpeg libraries instead of an ffmpeg process
+    public static final boolean IN_PROCESS_DECODE = Boolean.valueOf(System.getenv("IN_PROCESS_DECODE"));
+    // how long before a track ends the next one starts loading, 0 to disable
+    public static final int PREFETCH_SECONDS = intEnv("PREFETCH_SECONDS", 10);
+    public static final int PREFETCH_BUFFER_KB = intEnv("PREFETCH_BUFFER_KB", 1024);
+    // off-heap jitter buffer per playing stream, 0 to disable
+    public static final int READ_AHEAD_KB = intEnv("READ_AHEAD_KB", 1024);
+    // tracks up to this long are transcoded to a temp file as fast as possible, 0 to disable
+    public static final int FULL_BUFFER_MAX_SECONDS = intEnv("FULL_BUFFER_MAX_SECONDS", 600);
+    public static final Path TRANSCODE_CACHE_DIR = pathEnv("TRANSCODE_CACHE_DIR",
+            Paths.get(System.getProperty("java.io.tmpdir"), "ourtube-transcodes"));
+    // 0 to disable
+    public static final int TRANSCODE_CACHE_MB = intEnv("TRANSCODE_CACHE_MB", 2048);
+    // ring buffer per shared transcode, 0 to disable sharing
+    public static final int SHARED_DECODE_BUFFER_MB = intEnv("SHARED_DECODE_BUFFER_MB", 8);
+    // long-lived stream URL resolvers, 0 to spawn ytdl for every song
+    public static final int RESOLVER_WORKERS = intEnv("RESOLVER_WORKERS", 2);
+    // parallel range requests per in-process download
+    public static final int DOWNLOAD_CONNECTIONS = intEnv("DOWNLOAD_CONNECTIONS", 4);
+    // concurrent download/transcode pipelines
+    public static final int MAX_PIPELINES = intEnv("MAX_PIPELINES", 12);
+    public static final int MAX_PIPELINES_PER_GUILD = intEnv("MAX_PIPELINES_PER_GUILD", 2);
+    // how often to log the streaming stats, 0 to disable
+    public static final int STATS_LOG_SECONDS = intEnv("STATS_LOG_SECONDS", 300);
     static {
         checkNotNull(YOUTUBE_API_KEY, "No YOUTUBE_API_KEY provided.");
         checkNotNull(DISCORD_TOKEN, "No DISCORD_TOKEN provided.");
     }
 
+    private static int intEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static Path pathEnv(String name, Path defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : Paths.get(value);
+    }
+
 }
@@ -0,0 +1,396 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import static org.bytedeco.javacpp.avcodec.av_packet_alloc;
+import static org.bytedeco.javacpp.avcodec.av_packet_free;
+import static org.bytedeco.javacpp.avcodec.av_packet_unref;
+import static org.bytedeco.javacpp.avcodec.avcodec_alloc_context3;
+import static org.bytedeco.javacpp.avcodec.avcodec_find_decoder;
+import static org.bytedeco.javacpp.avcodec.avcodec_free_context;
+import static org.bytedeco.javacpp.avcodec.avcodec_open2;
+import static org.bytedeco.javacpp.avcodec.avcodec_parameters_to_context;
+import static org.bytedeco.javacpp.avcodec.avcodec_receive_frame;
+import static org.bytedeco.javacpp.avcodec.avcodec_send_packet;
+import static org.bytedeco.javacpp.avformat.av_find_best_stream;
+import static org.bytedeco.javacpp.avformat.av_read_frame;
+import static org.bytedeco.javacpp.avformat.avformat_alloc_context;
+import static org.bytedeco.javacpp.avformat.avformat_close_input;
+import static org.bytedeco.javacpp.avformat.avformat_find_stream_info;
+import static org.bytedeco.javacpp.avformat.avformat_open_input;
+import static org.bytedeco.javacpp.avformat.avio_alloc_context;
+import static org.bytedeco.javacpp.avformat.avio_context_free;
+import static org.bytedeco.javacpp.avutil.AVERROR_EOF;
+import static org.bytedeco.javacpp.avutil.AVERROR_INVALIDDATA;
+import static org.bytedeco.javacpp.avutil.AVMEDIA_TYPE_AUDIO;
+import static org.bytedeco.javacpp.avutil.AV_CH_LAYOUT_STEREO;
+import static org.bytedeco.javacpp.avutil.AV_NOPTS_VALUE;
+import static org.bytedeco.javacpp.avutil.AV_SAMPLE_FMT_S16;
+import static org.bytedeco.javacpp.avutil.AV_TIME_BASE;
+import static org.bytedeco.javacpp.avutil.av_frame_alloc;
+import static org.bytedeco.javacpp.avutil.av_frame_free;
+import static org.bytedeco.javacpp.avutil.av_free;
+import static org.bytedeco.javacpp.avutil.av_get_default_channel_layout;
+import static org.bytedeco.javacpp.avutil.av_malloc;
+import static org.bytedeco.javacpp.avutil.av_strerror;
+import static org.bytedeco.javacpp.swresample.swr_alloc_set_opts;
+import static org.bytedeco.javacpp.swresample.swr_convert;
+import static org.bytedeco.javacpp.swresample.swr_free;
+import static org.bytedeco.javacpp.swresample.swr_get_out_samples;
+import static org.bytedeco.javacpp.swresample.swr_init;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.bytedeco.javacpp.avcodec.AVCodec;
+import org.bytedeco.javacpp.avcodec.AVCodecContext;
+import org.bytedeco.javacpp.avcodec.AVCodecParameters;
+import org.bytedeco.javacpp.avcodec.AVPacket;
+import org.bytedeco.javacpp.avformat.AVFormatContext;
+import org.bytedeco.javacpp.avformat.AVIOContext;
+import org.bytedeco.javacpp.avformat.Read_packet_Pointer_BytePointer_int;
+import org.bytedeco.javacpp.avutil.AVFrame;
+import org.bytedeco.javacpp.swresample.SwrContext;
+
+/**
+ * Decodes audio to {@link YoutubeStreams#PCM_FORMAT} inside the JVM, using the FFmpeg
+ * libraries instead of an {@code ffmpeg} process.
+ *
+ * <p>
+ * Decoding happens on the reading thread, on demand. Converted samples stay in native
+ * memory until a read copies them out, straight into the destination buffer for channel
+ * reads.
+ * </p>
+ */
+public final class FfmpegDecoder extends InputStream implements ReadableByteChannel {
+
+    // FFmpeg 4.1's avio asserts if a custom buffer is larger than its internal 32K
+    private static final int IO_BUFFER_SIZE = 32 * 1024;
+    private static final int OUT_CHANNELS = 2;
+    private static final int OUT_SAMPLE_RATE = 48000;
+    private static final int OUT_FRAME_SIZE = OUT_CHANNELS * Short.BYTES;
+
+    /**
+     * Probe {@code source} and set up a decoder for its best audio stream. Blocks until
+     * enough of the source has arrived to identify it.
+     */
+    public static FfmpegDecoder open(InputStream source) throws IOException {
+        FfmpegDecoder decoder = new FfmpegDecoder(source);
+        try {
+            decoder.init();
+            return decoder;
+        } catch (IOException | RuntimeException e) {
+            decoder.close();
+            throw e;
+        }
+    }
+
+    private final InputStream source;
+    // held so the callback isn't collected while FFmpeg has a pointer to it
+    private final Read_packet_Pointer_BytePointer_int readCallback = new Read_packet_Pointer_BytePointer_int() {
+
+        private final byte[] transfer = new byte[IO_BUFFER_SIZE];
+
+        @Override
+        public int call(Pointer opaque, BytePointer buf, int bufSize) {
+            try {
+                int read = source.read(transfer, 0, Math.min(bufSize, transfer.length));
+                if (read <= 0) {
+                    return AVERROR_EOF;
+                }
+                buf.put(transfer, 0, read);
+                return read;
+            } catch (IOException e) {
+                sourceError = e;
+                return AVERROR_EOF;
+            }
+        }
+    };
+    private volatile IOException sourceError;
+    private volatile boolean closed;
+
+    private AVIOContext io;
+    private AVFormatContext format;
+    private AVCodecContext codec;
+    private SwrContext resampler;
+    private AVPacket packet;
+    private AVFrame frame;
+    private int streamIndex;
+    private long durationMs = -1;
+
+    private BytePointer out;
+    private PointerPointer<BytePointer> outPlanes;
+    private ByteBuffer pending = ByteBuffer.allocate(0);
+    private boolean inputEnded;
+    private boolean finished;
+
+    private FfmpegDecoder(InputStream source) {
+        this.source = source;
+    }
+
+    private synchronized void init() throws IOException {
+        BytePointer ioBuffer = new BytePointer(av_malloc(IO_BUFFER_SIZE));
+        io = avio_alloc_context(ioBuffer, IO_BUFFER_SIZE, 0, null, readCallback, null, null);
+        format = avformat_alloc_context();
+        format.pb(io);
+        int ret = avformat_open_input(format, (String) null, null, null);
+        if (ret < 0) {
+            // freed by avformat_open_input
+            format = null;
+            throw error("Unable to open input", ret);
+        }
+        check("Unable to find stream info", avformat_find_stream_info(format, (PointerPointer<?>) null));
+        if (format.duration() != AV_NOPTS_VALUE && format.duration() > 0) {
+            durationMs = format.duration() / (AV_TIME_BASE / 1000);
+        }
+        streamIndex = check("No audio stream",
+                av_find_best_stream(format, AVMEDIA_TYPE_AUDIO, -1, -1, (PointerPointer<?>) null, 0));
+
+        AVCodecParameters params = format.streams(streamIndex).codecpar();
+        AVCodec decoder = avcodec_find_decoder(params.codec_id());
+        if (decoder == null) {
+            throw new IOException("No decoder for codec " + params.codec_id());
+        }
+        codec = avcodec_alloc_context3(decoder);
+        check("Unable to configure decoder", avcodec_parameters_to_context(codec, params));
+        check("Unable to open decoder", avcodec_open2(codec, decoder, (PointerPointer<?>) null));
+
+        long inLayout = codec.channel_layout() != 0
+                ? codec.channel_layout()
+                : av_get_default_channel_layout(codec.channels());
+        resampler = swr_alloc_set_opts(null,
+                AV_CH_LAYOUT_STEREO, AV_SAMPLE_FMT_S16, OUT_SAMPLE_RATE,
+                inLayout, codec.sample_fmt(), codec.sample_rate(),
+                0, null);
+        check("Unable to set up resampler", swr_init(resampler));
+
+        packet = av_packet_alloc();
+        frame = av_frame_alloc();
+    }
+
+    /**
+     * @return the duration the container declares, or {@code -1} if it doesn't
+     */
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * @return {@code true} once the whole source has been decoded without errors
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(dst.remaining(), pending.remaining());
+        int limit = pending.limit();
+        pending.limit(pending.position() + count);
+        dst.put(pending);
+        pending.limit(limit);
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, pending.remaining());
+        pending.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        return pending.remaining();
+    }
+
+    // decode until there's output, false at the end
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Decoder closed");
+        }
+        while (!pending.hasRemaining()) {
+            if (finished || !decodeNext()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean decodeNext() throws IOException {
+        while (true) {
+            int ret = avcodec_receive_frame(codec, frame);
+            if (ret >= 0) {
+                convert(frame.extended_data(), frame.nb_samples());
+                return true;
+            }
+            if (ret == AVERROR_EOF) {
+                // drain what the resampler is holding
+                convert(null, 0);
+                if (!pending.hasRemaining()) {
+                    finished = true;
+                    return false;
+                }
+                return true;
+            }
+            // otherwise the decoder wants more input
+            if (inputEnded) {
+                throw error("Decoder stalled", ret);
+            }
+            ret = av_read_frame(format, packet);
+            if (ret < 0) {
+                if (sourceError != null) {
+                    throw sourceError;
+                }
+                if (ret != AVERROR_EOF) {
+                    throw error("Unable to read input", ret);
+                }
+                inputEnded = true;
+                check("Unable to flush decoder", avcodec_send_packet(codec, null));
+                continue;
+            }
+            try {
+                if (packet.stream_index() == streamIndex) {
+                    ret = avcodec_send_packet(codec, packet);
+                    // skip over damaged packets
+                    if (ret < 0 && ret != AVERROR_INVALIDDATA) {
+                        throw error("Unable to decode", ret);
+                    }
+                }
+            } finally {
+                av_packet_unref(packet);
+            }
+        }
+    }
+
+    private void convert(PointerPointer<?> in, int inSamples) throws IOException {
+        int maxSamples = swr_get_out_samples(resampler, inSamples);
+        int maxBytes = Math.max(maxSamples, 0) * OUT_FRAME_SIZE;
+        if (out == null || out.capacity() < maxBytes) {
+            if (out != null) {
+                out.close();
+            }
+            out = new BytePointer(Math.max(maxBytes, IO_BUFFER_SIZE));
+            outPlanes = new PointerPointer<BytePointer>(1).put(0, out);
+        }
+        int samples = check("Unable to resample", swr_convert(resampler, outPlanes, maxSamples, in, inSamples));
+        // JavaCPP reads a zero limit as "no limit"
+        pending = samples == 0
+                ? ByteBuffer.allocate(0)
+                : out.position(0).limit((long) samples * OUT_FRAME_SIZE).asByteBuffer();
+    }
+
+    private static int check(String message, int ret) throws IOException {
+        if (ret < 0) {
+            throw error(message, ret);
+        }
+        return ret;
+    }
+
+    private static IOException error(String message, int ret) {
+        byte[] description = new byte[256];
+        av_strerror(ret, description, description.length);
+        int length = 0;
+        while (length < description.length && description[length] != 0) {
+            length++;
+        }
+        return new IOException(message + ": " + new String(description, 0, length, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            // first, to unblock a read waiting on the source, so we can take the lock
+            source.close();
+        } finally {
+            synchronized (this) {
+                free();
+            }
+        }
+    }
+
+    private void free() {
+        if (frame != null) {
+            av_frame_free(frame);
+            frame = null;
+        }
+        if (packet != null) {
+            av_packet_free(packet);
+            packet = null;
+        }
+        if (resampler != null) {
+            swr_free(resampler);
+            resampler = null;
+        }
+        if (codec != null) {
+            avcodec_free_context(codec);
+            codec = null;
+        }
+        if (format != null) {
+            avformat_close_input(format);
+            format = null;
+        }
+        if (io != null) {
+            // custom IO is ours to free, and FFmpeg may have swapped the buffer
+            av_free(io.buffer());
+            avio_context_free(io);
+            io = null;
+        }
+        if (out != null) {
+            out.close();
+            out = null;
+            pending = ByteBuffer.allocate(0);
+        }
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Reads a whole source into a temporary file as fast as it can be produced, while the
+ * reader follows behind.
+ *
+ * <p>
+ * Meant for short tracks: their pipeline finishes and exits in seconds instead of
+ * living as long as playback, and everything already written can be
+ * {@linkplain #position(long) seeked} to instantly. Reads are served from the page
+ * cache, and the file is deleted on close.
+ * </p>
+ *
+ * <p>
+ * The file is read and written through {@link RandomAccessFile}s rather than a
+ * {@code FileChannel}: the player interrupts its thread to seek, and that would close a
+ * channel for good.
+ * </p>
+ */
+public final class FullBuffer extends InputStream implements ReadableByteChannel, SeekableStream {
+
+    private static final Logger LOGGER = Log.get();
+
+    private static final int TRANSFER_SIZE = 64 * 1024;
+
+    private static final ExecutorService PRODUCERS = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("full-buffer-%d").setDaemon(true).build());
+
+    /**
+     * @return if a track of this length should be fully buffered
+     */
+    public static boolean isEligible(long durationMs) {
+        return durationMs > 0 && durationMs <= Environment.FULL_BUFFER_MAX_SECONDS * 1000L;
+    }
+
+    /**
+     * @return {@code source}, fully buffered, or {@code source} itself if it's already in
+     *     memory
+     */
+    public static InputStream wrap(InputStream source, ReadAheadBuffer.Metrics metrics) throws IOException {
+        if (source instanceof ByteBufferInputStream) {
+            return source;
+        }
+        Path path = Files.createTempFile("ourtube-full-", ".buf");
+        RandomAccessFile writer = null;
+        try {
+            writer = new RandomAccessFile(path.toFile(), "rw");
+            RandomAccessFile reader = new RandomAccessFile(path.toFile(), "r");
+            return new FullBuffer(source, path, writer, reader, metrics);
+        } catch (IOException e) {
+            if (writer != null) {
+                writer.close();
+            }
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    private final InputStream source;
+    private final Path path;
+    // each has its own file position
+    private final RandomAccessFile writer;
+    private final RandomAccessFile reader;
+    private final ReadAheadBuffer.Metrics metrics;
+    private final Lock lock = new ReentrantLock();
+    private final Condition written = lock.newCondition();
+    private long writePosition;
+    private boolean complete;
+    private IOException error;
+    private volatile boolean closed;
+    // only touched by the reader
+    private long position;
+    private byte[] transfer;
+
+    private FullBuffer(InputStream source, Path path, RandomAccessFile writer, RandomAccessFile reader,
+                       ReadAheadBuffer.Metrics metrics) {
+        this.source = source;
+        this.path = path;
+        this.writer = writer;
+        this.reader = reader;
+        this.metrics = metrics;
+        metrics.capacity = 0;
+        metrics.buffered = 0;
+        PRODUCERS.execute(this::produce);
+    }
+
+    private void produce() {
+        byte[] transfer = new byte[TRANSFER_SIZE];
+        try (source) {
+            long offset = 0;
+            while (!closed) {
+                int read = source.read(transfer);
+                if (read == -1) {
+                    break;
+                }
+                writer.write(transfer, 0, read);
+                offset += read;
+                publish(offset, false);
+            }
+            publish(offset, true);
+        } catch (IOException e) {
+            if (!closed) {
+                fail(e);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Full buffer producer failed", e);
+            fail(new IOException(e));
+        }
+    }
+
+    private void publish(long offset, boolean done) {
+        lock.lock();
+        try {
+            writePosition = offset;
+            complete = done;
+            metrics.capacity = offset;
+            metrics.buffered = offset - position;
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(IOException e) {
+        lock.lock();
+        try {
+            error = e;
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return if the source has been read to the end, and the processes behind it are done
+     */
+    public boolean isComplete() {
+        lock.lock();
+        try {
+            return complete;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes written so far, the full length once {@linkplain #isComplete() complete}
+     */
+    public long length() {
+        lock.lock();
+        try {
+            return writePosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Move the read position. Positions past what's been written wait for it on the next
+     * read, and positions past the end read as end of stream.
+     */
+    @Override
+    public void position(long newPosition) {
+        position = Math.max(0, newPosition);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (dst.hasArray()) {
+            int read = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
+            return read;
+        }
+        if (transfer == null) {
+            transfer = new byte[TRANSFER_SIZE];
+        }
+        int read = read(transfer, 0, Math.min(dst.remaining(), TRANSFER_SIZE));
+        if (read > 0) {
+            dst.put(transfer, 0, read);
+        }
+        return read;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long available;
+        lock.lock();
+        try {
+            boolean waited = false;
+            while ((available = writePosition - position) <= 0 && !complete && error == null && !closed) {
+                if (!waited && metrics.bytesRead.get() > 0) {
+                    metrics.underruns.incrementAndGet();
+                }
+                waited = true;
+                written.await();
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (available <= 0) {
+                if (error != null) {
+                    throw error;
+                }
+                return -1;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+        reader.seek(position);
+        int read = reader.read(b, off, (int) Math.min(len, available));
+        if (read == -1) {
+            throw new IOException("Buffer file is shorter than what was written to it");
+        }
+        position += read;
+        metrics.bytesRead.addAndGet(read);
+        metrics.buffered = Math.max(0, length() - position);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, length() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, length() - position));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try (writer; reader) {
+            source.close();
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+}
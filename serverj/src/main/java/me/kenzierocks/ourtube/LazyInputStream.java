@@ -25,16 +25,37 @@
 
 package me.kenzierocks.ourtube;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.Nullable;
+
 /**
  * {@link InputStream} that creates on first read.
+ *
+ * <p>
+ * Also readable as a {@link ReadableByteChannel}. If the created stream is itself a
+ * channel, channel reads go straight to it.
+ * </p>
+ *
+ * <p>
+ * The stream can be {@linkplain #prefetch(Executor, int) created ahead of time} with a
+ * bounded amount of data read in advance, and that can be cancelled until the first read.
+ * </p>
  */
-public class LazyInputStream extends InputStream {
+public class LazyInputStream extends InputStream implements ReadableByteChannel {
 
     @FunctionalInterface
     public interface InputStreamConstructor {
@@ -43,9 +64,77 @@ public class LazyInputStream extends InputStream {
 
     }
 
+    private final class Prefetch {
+
+        private final CompletableFuture<InputStream> result = new CompletableFuture<>();
+        private volatile InputStream raw;
+        private volatile boolean cancelled;
+
+        void run(InputStreamConstructor constructor, int readAhead) {
+            try {
+                InputStream raw = constructor.construct();
+                this.raw = raw;
+                if (cancelled) {
+                    raw.close();
+                    result.cancel(false);
+                    return;
+                }
+                if (readAhead == 0) {
+                    result.complete(raw);
+                    return;
+                }
+                byte[] head = raw.readNBytes(readAhead);
+                result.complete(new SequenceInputStream(new ByteArrayInputStream(head), raw));
+            } catch (IOException | RuntimeException e) {
+                if (cancelled) {
+                    result.cancel(false);
+                } else {
+                    result.completeExceptionally(e);
+                }
+            }
+        }
+
+        InputStream await() throws IOException {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwable t = e.getCause();
+                if (t instanceof IOException) {
+                    throw (IOException) t;
+                }
+                throw new IOException(t);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            // unblocks the read-ahead, if it's still going
+            InputStream raw = this.raw;
+            if (raw != null) {
+                try {
+                    raw.close();
+                } catch (IOException ignored) {
+                }
+            }
+            // close the stream if it finished
+            result.thenAccept(stream -> {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            });
+        }
+
+    }
+
     private final Lock lock = new ReentrantLock();
     private InputStreamConstructor constructor;
+    private Prefetch prefetch;
     private InputStream stream;
+    private ReadableByteChannel channel;
 
     public LazyInputStream(InputStreamConstructor constructor) {
         this.constructor = constructor;
@@ -56,7 +145,12 @@ public class LazyInputStream extends InputStream {
             lock.lock();
             try {
                 if (stream == null) {
-                    stream = constructor.construct();
+                    if (prefetch != null) {
+                        stream = prefetch.await();
+                        prefetch = null;
+                    } else {
+                        stream = constructor.construct();
+                    }
                     constructor = null;
                 }
             } finally {
@@ -66,6 +160,77 @@ public class LazyInputStream extends InputStream {
         return stream;
     }
 
+    /**
+     * Create the stream on {@code executor}, and read up to {@code readAhead} bytes from
+     * it, without waiting for a read. Does nothing if the stream already exists.
+     */
+    public void prefetch(Executor executor, int readAhead) {
+        lock.lock();
+        try {
+            if (stream != null || prefetch != null) {
+                return;
+            }
+            Prefetch prefetch = new Prefetch();
+            InputStreamConstructor constructor = this.constructor;
+            executor.execute(() -> prefetch.run(constructor, readAhead));
+            this.prefetch = prefetch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancel a {@linkplain #prefetch(Executor, int) prefetch} that hasn't been read from
+     * yet, closing what it created. The stream will be created again on first read.
+     */
+    public void cancelPrefetch() {
+        lock.lock();
+        try {
+            if (stream == null && prefetch != null) {
+                prefetch.cancel();
+                prefetch = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Doesn't create the stream, a seek before the first read is better off making a new
+     * one at the target.
+     *
+     * @return the stream, if it's been created and can seek
+     */
+    @Nullable
+    public SeekableStream peekSeekable() {
+        lock.lock();
+        try {
+            return stream instanceof SeekableStream ? (SeekableStream) stream : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReadableByteChannel channel() throws IOException {
+        if (channel == null) {
+            InputStream stream = stream();
+            channel = stream instanceof ReadableByteChannel
+                    ? (ReadableByteChannel) stream
+                    : Channels.newChannel(stream);
+        }
+        return channel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return channel().read(dst);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel == null || channel.isOpen();
+    }
+
     @Override
     public int read() throws IOException {
         return stream().read();
@@ -93,7 +258,23 @@ public class LazyInputStream extends InputStream {
 
     @Override
     public void close() throws IOException {
-        stream().close();
+        lock.lock();
+        try {
+            if (stream == null) {
+                // never opened, nothing to start just to close it
+                if (prefetch != null) {
+                    prefetch.cancel();
+                    prefetch = null;
+                }
+                constructor = () -> {
+                    throw new IOException("Stream closed");
+                };
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        stream.close();
     }
 
     @Override
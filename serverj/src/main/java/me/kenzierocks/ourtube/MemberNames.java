@@ -0,0 +1,135 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import discord4j.core.object.entity.Member;
+import discord4j.core.object.util.Snowflake;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+/**
+ * Display names of guild members, cached so they don't cost a REST call each time.
+ *
+ * <p>
+ * Filled from member chunks as they arrive, and from Discord on a miss. Entries are
+ * dropped when the member changes or leaves.
+ * </p>
+ */
+public enum MemberNames {
+    INSTANCE;
+
+    private static final Logger LOGGER = Log.get();
+
+    private static final int MAX_NAMES_PER_GUILD = 1000;
+    // queue events wait on names, so don't let Discord hold them up for long
+    private static final long FETCH_TIMEOUT_SECONDS = 5;
+
+    private final Map<Snowflake, LoadingCache<Snowflake, ListenableFuture<String>>> guildNames =
+            new ConcurrentHashMap<>();
+
+    private LoadingCache<Snowflake, ListenableFuture<String>> names(Snowflake guildId) {
+        return guildNames.computeIfAbsent(guildId, k -> CacheBuilder.newBuilder()
+                .maximumSize(MAX_NAMES_PER_GUILD)
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build(CacheLoader.from(userId -> fetchName(guildId, userId))));
+    }
+
+    /**
+     * @return the member's display name, or their ID if it can't be found in time
+     */
+    public ListenableFuture<String> getName(Snowflake guildId, Snowflake userId) {
+        LoadingCache<Snowflake, ListenableFuture<String>> names = names(guildId);
+        ListenableFuture<String> result = names.getUnchecked(userId);
+        Futures.addCallback(result, new FutureCallback<>() {
+
+            @Override
+            public void onFailure(Throwable t) {
+                // un-cache so we can try again later
+                if (names.getIfPresent(userId) == result) {
+                    names.invalidate(userId);
+                }
+            }
+
+            @Override
+            public void onSuccess(String result) {
+            }
+        }, MoreExecutors.directExecutor());
+        return Futures.catching(result, Throwable.class, t -> {
+            LOGGER.warn("Couldn't get the name of {} in guild {}", userId.asString(), guildId.asString(), t);
+            return userId.asString();
+        }, MoreExecutors.directExecutor());
+    }
+
+    private ListenableFuture<String> fetchName(Snowflake guildId, Snowflake userId) {
+        SettableFuture<String> future = SettableFuture.create();
+        Disposable request = Dissy.BOT.getMemberById(guildId, userId)
+                .map(Member::getDisplayName)
+                .switchIfEmpty(Mono.error(() -> new NoSuchElementException("No member " + userId.asString())))
+                .subscribe(future::set, future::setException);
+        // cancelled by the timeout
+        future.addListener(() -> {
+            if (future.isCancelled()) {
+                request.dispose();
+            }
+        }, MoreExecutors.directExecutor());
+        return Futures.withTimeout(future, FETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS, AsyncService.GENERIC);
+    }
+
+    public void memberSeen(Member member) {
+        nameSeen(member.getGuildId(), member.getId(), member.getDisplayName());
+    }
+
+    /**
+     * Cache a display name that's already known, skipping the lookup.
+     */
+    public void nameSeen(Snowflake guildId, Snowflake userId, String name) {
+        names(guildId).put(userId, Futures.immediateFuture(name));
+    }
+
+    public void invalidate(Snowflake guildId, Snowflake userId) {
+        LoadingCache<Snowflake, ListenableFuture<String>> names = guildNames.get(guildId);
+        if (names != null) {
+            names.invalidate(userId);
+        }
+    }
+
+}
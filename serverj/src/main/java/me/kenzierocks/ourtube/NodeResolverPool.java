@@ -0,0 +1,229 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Resolves stream URLs with a pool of long-lived Node.js workers, running
+ * {@code resolver/ytdl-resolver.js}.
+ *
+ * <p>
+ * Workers take requests concurrently, and each request goes to the least busy one. A
+ * health check pings every worker periodically, and replaces any that died or stopped
+ * answering.
+ * </p>
+ */
+public class NodeResolverPool implements StreamUrlResolver {
+
+    private static final Logger LOGGER = Log.get();
+
+    private static final String SCRIPT = "ytdl-resolver";
+    static {
+        TempFileCache.cacheData(SCRIPT,
+                () -> Resources.asByteSource(Resources.getResource("resolver/ytdl-resolver.js")).openStream());
+    }
+
+    private static final long RESOLVE_TIMEOUT_SECONDS = 20;
+    private static final long PING_TIMEOUT_SECONDS = 5;
+    private static final long HEALTH_CHECK_SECONDS = 30;
+    private static final ThreadFactory READER_THREADS =
+            new ThreadFactoryBuilder().setNameFormat("resolver-reader-%d").setDaemon(true).build();
+    private static final BitSet NODE_OK = new BitSet();
+    static {
+        NODE_OK.set(0);
+    }
+
+    private final class Worker {
+
+        private final Process process;
+        private final Writer requests;
+        private final Map<String, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+
+        Worker() throws IOException {
+            process = new ProcessBuilder("node", TempFileCache.getCachedData(SCRIPT).toString()).start();
+            requests = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            ProcessErrorDrain.INSTANCE.watch("ytdl resolver", process, NODE_OK);
+            Thread reader = READER_THREADS.newThread(this::readResponses);
+            reader.start();
+            process.onExit().thenRun(() -> failPending(new IOException("Resolver exited")));
+        }
+
+        private void readResponses() {
+            try (BufferedReader responses = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = responses.readLine()) != null) {
+                    String[] parts = line.split(" ", 3);
+                    CompletableFuture<String> response = pending.remove(parts[0]);
+                    if (response == null) {
+                        continue;
+                    }
+                    String value = parts.length > 2 ? parts[2] : "";
+                    if (parts.length > 1 && (parts[1].equals("ok") || parts[1].equals("pong"))) {
+                        response.complete(value);
+                    } else {
+                        response.completeExceptionally(new IOException(value));
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Resolver output closed", e);
+            }
+            failPending(new IOException("Resolver closed its output"));
+        }
+
+        private void failPending(IOException error) {
+            for (String id : pending.keySet()) {
+                CompletableFuture<String> response = pending.remove(id);
+                if (response != null) {
+                    response.completeExceptionally(error);
+                }
+            }
+        }
+
+        CompletableFuture<String> send(String command, String argument) {
+            String id = Long.toString(nextRequestId.incrementAndGet());
+            CompletableFuture<String> response = new CompletableFuture<>();
+            pending.put(id, response);
+            // e.g. cancelled after a timeout, nothing is waiting any more
+            response.whenComplete((value, error) -> pending.remove(id, response));
+            try {
+                synchronized (requests) {
+                    requests.write(id + " " + command + (argument == null ? "" : " " + argument) + "\n");
+                    requests.flush();
+                }
+            } catch (IOException e) {
+                pending.remove(id);
+                response.completeExceptionally(e);
+            }
+            return response;
+        }
+
+        boolean isAlive() {
+            return process.isAlive();
+        }
+
+        int load() {
+            return pending.size();
+        }
+
+        void destroy() {
+            process.destroy();
+        }
+
+    }
+
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final List<Worker> workers = new ArrayList<>();
+    private final int size;
+
+    public NodeResolverPool(int size) {
+        this.size = size;
+        AsyncService.GENERIC.scheduleWithFixedDelay(this::checkHealth,
+                HEALTH_CHECK_SECONDS, HEALTH_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public String resolve(String videoId) throws IOException {
+        Worker worker = pickWorker();
+        CompletableFuture<String> url = worker.send("resolve", "https://www.youtube.com/watch?v=" + videoId);
+        try {
+            return url.get(RESOLVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted resolving " + videoId);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to resolve " + videoId, e.getCause());
+        } catch (TimeoutException e) {
+            url.cancel(false);
+            // it's most likely stuck, and would take the next request with it
+            LOGGER.warn("Resolver worker timed out resolving {}, replacing it", videoId);
+            replace(worker);
+            throw new IOException("Timed out resolving " + videoId);
+        }
+    }
+
+    // the next request starts a new one in its place
+    private void replace(Worker worker) {
+        synchronized (this) {
+            workers.remove(worker);
+        }
+        worker.destroy();
+    }
+
+    private synchronized Worker pickWorker() throws IOException {
+        workers.removeIf(worker -> !worker.isAlive());
+        // fill the pool lazily, so nothing starts until a song does
+        if (workers.size() < size) {
+            Worker worker = new Worker();
+            workers.add(worker);
+            return worker;
+        }
+        return workers.stream().min(Comparator.comparingInt(Worker::load)).get();
+    }
+
+    private void checkHealth() {
+        List<Worker> current;
+        synchronized (this) {
+            current = new ArrayList<>(workers);
+        }
+        for (Worker worker : current) {
+            try {
+                worker.send("ping", null).get(PING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                LOGGER.warn("Resolver worker failed its health check, replacing it", e);
+                replace(worker);
+            }
+        }
+    }
+
+}
@@ -55,6 +55,7 @@ public class OurTube {
             }
 
         }, AsyncService.GENERIC);
+        StatsLog.INSTANCE.start();
         // trigger bot
         Dissy.BOT.login().block();
     }
@@ -27,17 +27,22 @@ package me.kenzierocks.ourtube;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import discord4j.core.object.entity.VoiceChannel;
 import discord4j.core.object.util.Snowflake;
 import discord4j.rest.http.client.ClientException;
 import me.kenzierocks.ourtube.guildchannels.GuildChannels;
 import me.kenzierocks.ourtube.guildchannels.NewChannel;
 import me.kenzierocks.ourtube.guildqueue.GuildQueue;
+import me.kenzierocks.ourtube.guildqueue.ImportProgress;
 import me.kenzierocks.ourtube.guildqueue.PopSong;
 import me.kenzierocks.ourtube.guildqueue.PushSong;
+import me.kenzierocks.ourtube.guildqueue.PushSongBatch;
 import me.kenzierocks.ourtube.guildvol.GuildVolume;
 import me.kenzierocks.ourtube.guildvol.SetVolume;
 import me.kenzierocks.ourtube.lava.OurTubeAudioTrack;
+import me.kenzierocks.ourtube.lava.QueueEntry;
 import me.kenzierocks.ourtube.rpc.RpcClient;
 import me.kenzierocks.ourtube.rpc.RpcDisconnect;
 import me.kenzierocks.ourtube.rpc.RpcEventHandler;
@@ -47,8 +52,8 @@ import me.kenzierocks.ourtube.songprogress.SongProgress;
 import me.kenzierocks.ourtube.songprogress.SongProgressMap;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
@@ -84,6 +89,16 @@ public class OurTubeApi {
             client.callFunction("songQueue.queued", push);
         }
 
+        @Subscribe
+        public void onPushBatch(PushSongBatch batch) {
+            client.callFunction("songQueue.queuedBatch", batch);
+        }
+
+        @Subscribe
+        public void onImportProgress(ImportProgress progress) {
+            client.callFunction("songQueue.importProgress", progress);
+        }
+
         @Subscribe
         public void onPop(PopSong pop) {
             client.callFunction("songQueue.popped", pop);
@@ -113,6 +128,19 @@ public class OurTubeApi {
         public String songUrl;
     }
 
+    private static final class ApiCancelImport {
+
+        public String guildId;
+        public String importId;
+    }
+
+    private static final class ApiSeekSong {
+
+        public String guildId;
+        public String songId;
+        public long positionMs;
+    }
+
     private static final class ApiSetVolume {
 
         public String guildId;
@@ -135,19 +163,23 @@ public class OurTubeApi {
                 subscriptions.put(sessId, subs);
 
                 // emit the entire queue for this guildId to the client
-                Stream.concat(
-                    Stream.of(Dissy.getPlayer(guildId).getPlayingTrack()),
+                List<QueueEntry> entries = Stream.concat(
+                    OurTubeAudioTrack.cast(Dissy.getPlayer(guildId).getPlayingTrack()).stream()
+                        .map(ot -> QueueEntry.track(Snowflake.of(ot.getMetadata().submitter()), ot)),
                     Dissy.getScheduler(guildId)
-                        .allTracksStream())
-                    .map(OurTubeAudioTrack::cast)
-                    .filter(Optional::isPresent)
-                    .map(Optional::get)
-                    .map(ot -> {
-                        Snowflake submitter = Snowflake.of(ot.getMetadata().submitter());
-                        String nick = Dissy.getNameForUserInGuild(guildId, submitter);
-                        return PushSong.create(ot.getIdentifier(), nick);
-                    })
-                    .forEach(subs::onPush);
+                        .allEntriesStream())
+                    .filter(entry -> entry.getSongId() != null)
+                    .collect(toImmutableList());
+                // look up every name first, most are cached, the rest in parallel
+                List<ListenableFuture<String>> nicks = entries.stream()
+                    .map(entry -> MemberNames.INSTANCE.getName(guildId, entry.getSubmitter()))
+                    .collect(toImmutableList());
+                for (int i = 0; i < entries.size(); i++) {
+                    String nick = Futures.getUnchecked(nicks.get(i));
+                    subs.onPush(PushSong.create(entries.get(i).getSongId(), nick));
+                }
+
+                GuildQueue.INSTANCE.getImports(guildId).forEach(subs::onImportProgress);
 
                 SongProgress progress = SongProgressMap.INSTANCE.getProgress(guildId);
                 if (progress != null) {
@@ -171,6 +203,29 @@ public class OurTubeApi {
                     queueSongs.songUrl
                 )
             ));
+        server.register("songQueue.cancelImport",
+            RpcEventHandler.typed(ApiCancelImport.class, (client, cancelImport) -> {
+                if (cancelImport.importId == null) {
+                    return;
+                }
+                GuildQueue.INSTANCE.cancelImport(
+                    Snowflake.of(cancelImport.guildId),
+                    client.getUserId(),
+                    cancelImport.importId
+                );
+            }));
+        server.register("songQueue.seek",
+            RpcEventHandler.typed(ApiSeekSong.class, (client, seekSong) -> {
+                if (seekSong.songId == null) {
+                    return;
+                }
+                GuildQueue.INSTANCE.seekSong(
+                    Snowflake.of(seekSong.guildId),
+                    client.getUserId(),
+                    seekSong.songId,
+                    seekSong.positionMs
+                );
+            }));
         server.register("songQueue.setVolume",
             RpcEventHandler.typed(ApiSetVolume.class, (client, setVolume) ->
                 GuildVolume.INSTANCE.setVolume(
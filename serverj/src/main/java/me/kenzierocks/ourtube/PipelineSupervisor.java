@@ -0,0 +1,486 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Restarts download/transcode pipelines that fail for transient reasons, resuming from
+ * the last byte handed to the reader.
+ *
+ * <p>
+ * Failures are classified from each process's exit code and error output. Permanent
+ * ones, like an unavailable video, end the stream as before. Transient ones, like a
+ * dropped connection or a stall, restart the pipeline a few times, starting it at the
+ * resume point. A circuit breaker stops spawning pipelines at all while restarts keep
+ * failing, then lets a single probe through to see if they've recovered.
+ * </p>
+ */
+public enum PipelineSupervisor {
+    INSTANCE;
+
+    private static final Logger LOGGER = Log.get();
+
+    private static final int MAX_RESTARTS = 3;
+    private static final long RESTART_BACKOFF_MS = 1000;
+    // a finished output should be followed closely by its processes exiting
+    private static final long EXIT_WAIT_SECONDS = 10;
+
+    private static final int BREAKER_THRESHOLD = 5;
+    private static final long BREAKER_OPEN_SECONDS = 60;
+
+    private static final List<String> PERMANENT_ERRORS = ImmutableList.of(
+            "video unavailable", "private video", "copyright", "sign in to confirm",
+            "not available", "status code: 404", "status code: 410",
+            "invalid data found", "no such file");
+    private static final List<String> TRANSIENT_ERRORS = ImmutableList.of(
+            "econnreset", "etimedout", "eai_again", "econnrefused", "socket hang up",
+            "timed out", "connection reset", "status code: 403", "status code: 5",
+            "server returned 5", "i/o error");
+
+    enum FailureKind {
+        TRANSIENT, PERMANENT
+    }
+
+    public interface PipelineStarter {
+
+        /**
+         * @param offset
+         *            where in the output to start. Only non-zero when restarting a
+         *            resumable pipeline
+         */
+        Attempt start(long offset) throws IOException;
+
+    }
+
+    private enum Admission {
+        DENIED,
+        ALLOWED,
+        // the one attempt let through while the breaker is half-open
+        PROBE
+    }
+
+    /**
+     * One run of a pipeline.
+     */
+    public static final class Attempt {
+
+        private final InputStream output;
+        private final long outputOffset;
+        private final List<Process> processes;
+        private final List<CompletableFuture<ProcessErrorDrain.Exit>> exits;
+        private final BooleanSupplier outputComplete;
+
+        /**
+         * @param output
+         *            the pipeline's output
+         * @param processes
+         *            every process in the pipeline
+         * @param exits
+         *            their exits, from {@link ProcessErrorDrain}
+         * @param outputComplete
+         *            if {@code output} itself ended cleanly, for outputs with their own
+         *            failure modes
+         */
+        public Attempt(InputStream output, List<Process> processes,
+                       List<CompletableFuture<ProcessErrorDrain.Exit>> exits,
+                       BooleanSupplier outputComplete) {
+            this(output, 0, processes, exits, outputComplete);
+        }
+
+        /**
+         * @param outputOffset
+         *            where in the whole output {@code output} starts, at or before the
+         *            requested offset. The rest is skipped.
+         */
+        public Attempt(InputStream output, long outputOffset, List<Process> processes,
+                       List<CompletableFuture<ProcessErrorDrain.Exit>> exits,
+                       BooleanSupplier outputComplete) {
+            this.output = output;
+            this.outputOffset = outputOffset;
+            this.processes = ImmutableList.copyOf(processes);
+            this.exits = ImmutableList.copyOf(exits);
+            this.outputComplete = outputComplete;
+        }
+
+        private void destroy() {
+            processes.forEach(Process::destroy);
+        }
+
+        /**
+         * @return how the attempt failed, or {@code null} if it didn't
+         */
+        private FailureKind classify(IOException readFailure) throws InterruptedException {
+            CompletableFuture<?> allExited = CompletableFuture.allOf(exits.toArray(new CompletableFuture<?>[0]));
+            try {
+                allExited.get(EXIT_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                destroy();
+                allExited.join();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+            FailureKind kind = null;
+            for (CompletableFuture<ProcessErrorDrain.Exit> exit : exits) {
+                FailureKind exitKind = PipelineSupervisor.classify(exit.join());
+                if (exitKind == FailureKind.PERMANENT) {
+                    return exitKind;
+                }
+                if (exitKind != null) {
+                    kind = exitKind;
+                }
+            }
+            if (kind != null) {
+                return kind;
+            }
+            // e.g. a dropped download with no process to blame, worth a bounded retry
+            if (readFailure != null) {
+                return FailureKind.TRANSIENT;
+            }
+            if (!outputComplete.getAsBoolean()) {
+                // it ended without an error, so it's the data that's bad
+                return FailureKind.PERMANENT;
+            }
+            return null;
+        }
+
+    }
+
+    static FailureKind classify(ProcessErrorDrain.Exit exit) {
+        if (exit.getExitCode() == 0) {
+            return null;
+        }
+        // checked first, ytdl exits with an "ok" code on network errors too
+        String errors = exit.getErrorTail().toLowerCase(Locale.ROOT);
+        if (PERMANENT_ERRORS.stream().anyMatch(errors::contains)) {
+            return FailureKind.PERMANENT;
+        }
+        if (TRANSIENT_ERRORS.stream().anyMatch(errors::contains)) {
+            return FailureKind.TRANSIENT;
+        }
+        if (exit.isOk()) {
+            return null;
+        }
+        // killed, most likely by the stall watchdog, or unrecognized.
+        // either is worth a bounded number of retries
+        return FailureKind.TRANSIENT;
+    }
+
+    private volatile long restartBackoffMs = RESTART_BACKOFF_MS;
+    private volatile long breakerOpenNanos = TimeUnit.SECONDS.toNanos(BREAKER_OPEN_SECONDS);
+    private final AtomicLong restartCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final Object breakerLock = new Object();
+    private int consecutiveFailures;
+    private long breakerOpenUntil;
+    private boolean breakerOpen;
+    // a probe is out, everyone else waits for its result
+    private boolean probing;
+
+    /**
+     * Start a supervised pipeline.
+     *
+     * @param name
+     *            for logging
+     * @param resumable
+     *            if a restarted pipeline produces the same bytes, so it can pick up
+     *            part way through. Otherwise it's only restarted before any output.
+     * @throws IOException
+     *             if the circuit breaker is open, or the first attempt can't start
+     */
+    public SupervisedStream open(String name, boolean resumable, PipelineStarter starter) throws IOException {
+        Admission admission = allowAttempt();
+        if (admission == Admission.DENIED) {
+            throw new IOException("Too many recent pipeline failures, not starting " + name);
+        }
+        boolean probe = admission == Admission.PROBE;
+        Attempt first;
+        try {
+            first = starter.start(0);
+        } catch (IOException | RuntimeException e) {
+            if (probe) {
+                recordFailure(true);
+            }
+            throw e;
+        }
+        return new SupervisedStream(name, resumable, starter, first, probe);
+    }
+
+    // so tests don't have to wait out the real backoff
+    void setTimings(long restartBackoffMs, long breakerOpenNanos) {
+        this.restartBackoffMs = restartBackoffMs;
+        this.breakerOpenNanos = breakerOpenNanos;
+    }
+
+    public long getRestartCount() {
+        return restartCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public boolean isBreakerOpen() {
+        synchronized (breakerLock) {
+            return breakerOpen;
+        }
+    }
+
+    private Admission allowAttempt() {
+        synchronized (breakerLock) {
+            if (!breakerOpen) {
+                return Admission.ALLOWED;
+            }
+            if (probing || System.nanoTime() - breakerOpenUntil < 0) {
+                return Admission.DENIED;
+            }
+            // half-open: only this one goes, until it delivers or fails
+            probing = true;
+            return Admission.PROBE;
+        }
+    }
+
+    private void recordSuccess() {
+        synchronized (breakerLock) {
+            consecutiveFailures = 0;
+            if (breakerOpen) {
+                LOGGER.info("Pipelines are working again, closing the breaker");
+            }
+            breakerOpen = false;
+            probing = false;
+        }
+    }
+
+    /**
+     * @param probe
+     *            if the failed attempt was the half-open probe
+     */
+    private void recordFailure(boolean probe) {
+        failureCount.incrementAndGet();
+        synchronized (breakerLock) {
+            if (probe) {
+                // still broken, wait out another period
+                probing = false;
+                breakerOpenUntil = System.nanoTime() + breakerOpenNanos;
+                return;
+            }
+            consecutiveFailures++;
+            if (!breakerOpen && consecutiveFailures >= BREAKER_THRESHOLD) {
+                LOGGER.warn("{} pipeline failures in a row, pausing new pipelines for {}s",
+                        consecutiveFailures, TimeUnit.NANOSECONDS.toSeconds(breakerOpenNanos));
+                breakerOpen = true;
+                breakerOpenUntil = System.nanoTime() + breakerOpenNanos;
+            }
+        }
+    }
+
+    // a probe that ended with neither result, let another one try
+    private void releaseProbe() {
+        synchronized (breakerLock) {
+            probing = false;
+        }
+    }
+
+    /**
+     * The output of a supervised pipeline, across restarts.
+     */
+    public final class SupervisedStream extends InputStream implements TranscodeCache.CompletionCheck {
+
+        private final String name;
+        private final boolean resumable;
+        private final PipelineStarter starter;
+        // replaced by restarts, closed from any thread
+        private volatile Attempt current;
+        // the current attempt failed before it could be read
+        private IOException pendingFailure;
+        private boolean currentDelivered;
+        private long delivered;
+        private int restarts;
+        // the current attempt is the breaker's probe, guarded by breakerLock
+        private boolean probe;
+        private volatile boolean finished;
+        private volatile boolean closed;
+
+        private SupervisedStream(String name, boolean resumable, PipelineStarter starter, Attempt first,
+                                 boolean probe) {
+            this.name = name;
+            this.resumable = resumable;
+            this.starter = starter;
+            this.current = first;
+            this.probe = probe;
+        }
+
+        // if the current attempt was the probe, it isn't any more
+        private boolean takeProbe() {
+            synchronized (breakerLock) {
+                boolean wasProbe = probe;
+                probe = false;
+                return wasProbe;
+            }
+        }
+
+        private void releaseIfProbe() {
+            if (takeProbe()) {
+                releaseProbe();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (finished) {
+                    return -1;
+                }
+                IOException failure = pendingFailure;
+                pendingFailure = null;
+                if (failure == null) {
+                    try {
+                        int read = current.output.read(b, off, len);
+                        if (read != -1) {
+                            if (!currentDelivered && read > 0) {
+                                currentDelivered = true;
+                                takeProbe();
+                                recordSuccess();
+                            }
+                            delivered += read;
+                            return read;
+                        }
+                    } catch (IOException e) {
+                        if (closed) {
+                            throw e;
+                        }
+                        failure = e;
+                    }
+                }
+                FailureKind kind = classifyCurrent(failure);
+                if (kind == null) {
+                    finished = true;
+                    releaseIfProbe();
+                    return -1;
+                }
+                restart(kind, failure);
+            }
+        }
+
+        private FailureKind classifyCurrent(IOException failure) throws IOException {
+            try {
+                return current.classify(failure);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for " + name, e);
+            }
+        }
+
+        private void restart(FailureKind kind, IOException failure) throws IOException {
+            IOException cause = failure != null ? failure : new IOException(name + " failed");
+            current.output.close();
+            if (kind == FailureKind.PERMANENT) {
+                // says nothing about whether pipelines work
+                releaseIfProbe();
+                throw cause;
+            }
+            recordFailure(takeProbe());
+            if (restarts >= MAX_RESTARTS || (delivered > 0 && !resumable)) {
+                throw cause;
+            }
+            restarts++;
+            try {
+                TimeUnit.MILLISECONDS.sleep(restartBackoffMs * restarts);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw cause;
+            }
+            if (closed) {
+                throw cause;
+            }
+            Admission admission = allowAttempt();
+            if (admission == Admission.DENIED) {
+                throw cause;
+            }
+            synchronized (breakerLock) {
+                probe = admission == Admission.PROBE;
+            }
+            restartCount.incrementAndGet();
+            LOGGER.warn("Restarting {} at byte {} (attempt {})", name, delivered, restarts + 1);
+            Attempt next;
+            try {
+                next = starter.start(delivered);
+            } catch (IOException | RuntimeException e) {
+                recordFailure(takeProbe());
+                throw e;
+            }
+            current = next;
+            currentDelivered = false;
+            if (closed) {
+                // close() may have missed it
+                next.output.close();
+                throw new IOException("Stream closed");
+            }
+            try {
+                // the new attempt starts at or a little before where we were
+                next.output.skipNBytes(delivered - next.outputOffset);
+            } catch (IOException e) {
+                pendingFailure = e;
+            }
+        }
+
+        @Override
+        public boolean completedNormally() {
+            return finished;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            releaseIfProbe();
+            current.output.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.util.OptionalLong;
+
+import org.slf4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Song durations read from the media itself, by whatever happened to see them: FFmpeg
+ * describing its input, a cached transcode's length, or a track played to the end.
+ * More reliable than the API, which doesn't always know.
+ */
+public enum ProbedDurations {
+    INSTANCE;
+
+    private static final Logger LOGGER = Log.get();
+
+    private final Cache<String, Long> durations = CacheBuilder.newBuilder()
+            .maximumSize(10_000)
+            .build();
+
+    public void record(String videoId, long durationMs) {
+        if (durationMs <= 0) {
+            return;
+        }
+        Long old = durations.asMap().put(videoId, durationMs);
+        if (old == null) {
+            LOGGER.debug("{}: probed duration of {}ms", videoId, durationMs);
+        }
+    }
+
+    public OptionalLong get(String videoId) {
+        Long duration = durations.getIfPresent(videoId);
+        return duration == null ? OptionalLong.empty() : OptionalLong.of(duration);
+    }
+
+}
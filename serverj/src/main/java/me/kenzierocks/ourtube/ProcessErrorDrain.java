@@ -0,0 +1,236 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Collects the error output of every helper process on one thread, logging it if the
+ * process exits with an unexpected code.
+ *
+ * <p>
+ * Rather than a blocked reader per process, the thread polls each stream and only reads
+ * what's {@link InputStream#available() available}, so it never blocks and the thread
+ * count doesn't grow with the number of processes. Only the tail of each stream is kept.
+ * </p>
+ */
+public enum ProcessErrorDrain {
+    INSTANCE;
+
+    private static final Logger LOGGER = Log.get();
+
+    private static final long POLL_INTERVAL_MS = 100;
+    // errors come last, that's the part worth keeping
+    private static final int TAIL_BYTES = 8 * 1024;
+    // where e.g. FFmpeg describes its input
+    private static final int HEAD_CHARS = 8 * 1024;
+
+    @AutoValue
+    public abstract static class Exit {
+
+        public static Exit create(String name, int exitCode, boolean ok, String errorTail) {
+            return new AutoValue_ProcessErrorDrain_Exit(name, exitCode, ok, errorTail);
+        }
+
+        Exit() {
+        }
+
+        public abstract String getName();
+
+        public abstract int getExitCode();
+
+        /**
+         * @return if the exit code was one of the expected codes
+         */
+        public abstract boolean isOk();
+
+        /**
+         * @return the last few KiB of the process's error output
+         */
+        public abstract String getErrorTail();
+
+    }
+
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("process-stderr-%d").setDaemon(true).build());
+    private final Set<Drain> active = ConcurrentHashMap.newKeySet();
+    // only touched from the poller thread
+    private final byte[] buffer = new byte[8192];
+
+    ProcessErrorDrain() {
+        poller.scheduleWithFixedDelay(this::pollAll, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start collecting {@code process}'s error output. When it exits, the output is
+     * logged if the exit code isn't in {@code okCodes}.
+     *
+     * @return the process's exit, completed once its output has been collected
+     */
+    public CompletableFuture<Exit> watch(String name, Process process, BitSet okCodes) {
+        return watch(name, process, okCodes, null);
+    }
+
+    /**
+     * Like {@link #watch(String, Process, BitSet)}, also showing the start of the output to
+     * {@code headScanner} as it arrives.
+     *
+     * @param headScanner
+     *            given the output so far, until it returns {@code true} or the first few
+     *            KiB have gone by
+     */
+    public CompletableFuture<Exit> watch(String name, Process process, BitSet okCodes,
+                                         @Nullable Predicate<String> headScanner) {
+        Drain drain = new Drain(name, process, okCodes, headScanner);
+        active.add(drain);
+        return process.onExit().thenApplyAsync(p -> {
+            active.remove(drain);
+            return drain.finish();
+        }, poller);
+    }
+
+    private void pollAll() {
+        for (Drain drain : active) {
+            drain.poll();
+        }
+    }
+
+    private final class Drain {
+
+        private final String name;
+        private final Process process;
+        private final BitSet okCodes;
+        private final InputStream errors;
+        private final byte[] tail = new byte[TAIL_BYTES];
+        private long tailWritten;
+        @Nullable
+        private Predicate<String> headScanner;
+        private final StringBuilder head = new StringBuilder();
+
+        Drain(String name, Process process, BitSet okCodes, @Nullable Predicate<String> headScanner) {
+            this.name = name;
+            this.process = process;
+            this.okCodes = okCodes;
+            this.errors = process.getErrorStream();
+            this.headScanner = headScanner;
+        }
+
+        void poll() {
+            try {
+                int available;
+                while ((available = errors.available()) > 0) {
+                    int read = errors.read(buffer, 0, Math.min(available, buffer.length));
+                    if (read <= 0) {
+                        break;
+                    }
+                    if (Environment.INTERNAL_STREAMS_ERROR_OUTPUT) {
+                        System.err.write(buffer, 0, read);
+                    }
+                    appendTail(read);
+                    scanHead(read);
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Unable to read " + name + " errors", e);
+            }
+        }
+
+        private void appendTail(int length) {
+            int offset = 0;
+            if (length > tail.length) {
+                offset = length - tail.length;
+                tailWritten += offset;
+                length = tail.length;
+            }
+            int start = (int) (tailWritten % tail.length);
+            int first = Math.min(length, tail.length - start);
+            System.arraycopy(buffer, offset, tail, start, first);
+            System.arraycopy(buffer, offset + first, tail, 0, length - first);
+            tailWritten += length;
+        }
+
+        private void scanHead(int length) {
+            if (headScanner == null) {
+                return;
+            }
+            head.append(new String(buffer, 0, Math.min(length, HEAD_CHARS - head.length()),
+                    StandardCharsets.UTF_8));
+            if (headScanner.test(head.toString()) || head.length() >= HEAD_CHARS) {
+                headScanner = null;
+                head.setLength(0);
+                head.trimToSize();
+            }
+        }
+
+        private String tailText() {
+            int size = (int) Math.min(tailWritten, tail.length);
+            int start = (int) ((tailWritten - size) % tail.length);
+            int first = Math.min(size, tail.length - start);
+            byte[] text = new byte[size];
+            System.arraycopy(tail, start, text, 0, first);
+            System.arraycopy(tail, 0, text, first, size - first);
+            String prefix = tailWritten > size ? "..." : "";
+            return prefix + new String(text, StandardCharsets.UTF_8);
+        }
+
+        Exit finish() {
+            // it's exited, so whatever's left is already in the pipe
+            poll();
+            try {
+                errors.close();
+            } catch (IOException e) {
+                LOGGER.debug("Unable to close " + name + " errors", e);
+            }
+            int exitCode = process.exitValue();
+            Exit exit = Exit.create(name, exitCode, okCodes.get(exitCode), tailText());
+            if (!exit.isOk()) {
+                LOGGER.error("Error with " + name + " (exit code " + exitCode + "): "
+                        + exit.getErrorTail());
+            } else {
+                LOGGER.debug("{} exited cleanly.", name);
+            }
+            return exit;
+        }
+
+    }
+
+}
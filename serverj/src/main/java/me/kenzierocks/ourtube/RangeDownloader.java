@@ -0,0 +1,293 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Downloads a URL as several HTTP {@code Range} requests in parallel, reassembled into one
+ * stream in order.
+ *
+ * <p>
+ * Media hosts throttle each connection, so a few chunks in flight at once download
+ * faster than one long response. Only a small window of chunks ahead of the reader is
+ * fetched or held at a time. Each chunk is retried on its own if its request fails.
+ * </p>
+ */
+public final class RangeDownloader extends InputStream {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 500;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private static final OkHttpClient HTTP = createClient();
+
+    private static OkHttpClient createClient() {
+        Dispatcher dispatcher = new Dispatcher();
+        // every stream's chunks tend to come from the same few hosts
+        dispatcher.setMaxRequests(256);
+        dispatcher.setMaxRequestsPerHost(256);
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Start downloading {@code url}. If the server doesn't support ranges, this is a
+     * single ordinary download.
+     *
+     * @param parallelism
+     *            how many chunk requests to have in flight
+     * @param onForbidden
+     *            called if the server refuses the URL, e.g. because it expired
+     */
+    public static InputStream open(String url, int parallelism, Runnable onForbidden) throws IOException {
+        Response response = HTTP.newCall(rangeRequest(url, 0)).execute();
+        try {
+            if (response.code() == 403) {
+                onForbidden.run();
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("HTTP " + response.code() + " from " + response.request().url().host());
+            }
+            if (response.code() == 206) {
+                try (response) {
+                    long length = totalLength(response);
+                    if (length < 0) {
+                        throw new IOException("Unreadable Content-Range: " + response.header("Content-Range"));
+                    }
+                    return new RangeDownloader(url, Math.max(1, parallelism), onForbidden, length,
+                            response.body().bytes());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+        // no ranges, the whole body is coming
+        return new FilterInputStream(response.body().byteStream()) {
+            @Override
+            public void close() {
+                response.close();
+            }
+        };
+    }
+
+    private static Request rangeRequest(String url, long start) {
+        return new Request.Builder()
+                .url(url)
+                .header("Range", "bytes=" + start + "-" + (start + CHUNK_SIZE - 1))
+                .build();
+    }
+
+    private static long totalLength(Response response) {
+        String range = response.header("Content-Range");
+        Matcher matcher = range == null ? null : CONTENT_RANGE.matcher(range);
+        if (matcher == null || !matcher.matches()) {
+            return -1;
+        }
+        return Long.parseLong(matcher.group(3));
+    }
+
+    private final String url;
+    private final int parallelism;
+    private final Runnable onForbidden;
+    private final long length;
+    private final Deque<CompletableFuture<byte[]>> window = new ArrayDeque<>();
+    // for cancelling on close, touched from callbacks
+    private final Set<CompletableFuture<byte[]>> pending = ConcurrentHashMap.newKeySet();
+    private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+    private long nextRequestStart;
+    private ByteBuffer current;
+    private volatile boolean closed;
+
+    private RangeDownloader(String url, int parallelism, Runnable onForbidden, long length, byte[] firstChunk) {
+        this.url = url;
+        this.parallelism = parallelism;
+        this.onForbidden = onForbidden;
+        this.length = length;
+        this.nextRequestStart = firstChunk.length;
+        this.current = ByteBuffer.wrap(firstChunk);
+        fillWindow();
+    }
+
+    private void fillWindow() {
+        while (window.size() < parallelism && nextRequestStart < length) {
+            window.add(fetch(nextRequestStart));
+            nextRequestStart = Math.min(length, nextRequestStart + CHUNK_SIZE);
+        }
+    }
+
+    private CompletableFuture<byte[]> fetch(long start) {
+        CompletableFuture<byte[]> chunk = new CompletableFuture<>();
+        pending.add(chunk);
+        chunk.whenComplete((bytes, error) -> pending.remove(chunk));
+        attempt(chunk, start, 1);
+        return chunk;
+    }
+
+    private void attempt(CompletableFuture<byte[]> chunk, long start, int attempt) {
+        if (closed) {
+            chunk.cancel(false);
+            return;
+        }
+        Call call = HTTP.newCall(rangeRequest(url, start));
+        calls.add(call);
+        call.enqueue(new Callback() {
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                calls.remove(call);
+                try (response) {
+                    if (response.code() == 403) {
+                        onForbidden.run();
+                        chunk.completeExceptionally(new IOException("HTTP 403, stream URL refused"));
+                        return;
+                    }
+                    if (response.code() != 206) {
+                        retry(new IOException("HTTP " + response.code() + " for range at " + start));
+                        return;
+                    }
+                    byte[] bytes = response.body().bytes();
+                    long expected = Math.min(CHUNK_SIZE, length - start);
+                    if (bytes.length != expected) {
+                        retry(new IOException("Short range at " + start + ": " + bytes.length + " of " + expected));
+                        return;
+                    }
+                    chunk.complete(bytes);
+                } catch (IOException e) {
+                    retry(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                calls.remove(call);
+                retry(e);
+            }
+
+            private void retry(IOException e) {
+                if (closed || attempt >= MAX_CHUNK_ATTEMPTS) {
+                    chunk.completeExceptionally(e);
+                    return;
+                }
+                AsyncService.GENERIC.schedule(() -> attempt(chunk, start, attempt + 1),
+                        RETRY_DELAY_MS * attempt, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    @Nullable
+    private ByteBuffer nextChunk() throws IOException {
+        CompletableFuture<byte[]> chunk = window.poll();
+        if (chunk == null) {
+            return null;
+        }
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(chunk.get());
+            fillWindow();
+            return bytes;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted downloading " + url);
+        } catch (CancellationException e) {
+            throw new IOException("Download closed");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private boolean ensureData() throws IOException {
+        if (closed) {
+            throw new IOException("Download closed");
+        }
+        while (!current.hasRemaining()) {
+            ByteBuffer next = nextChunk();
+            if (next == null) {
+                return false;
+            }
+            current = next;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return ensureData() ? current.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int count = Math.min(len, current.remaining());
+        current.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current.remaining();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        calls.forEach(Call::cancel);
+        pending.forEach(chunk -> chunk.cancel(false));
+    }
+
+}
@@ -0,0 +1,308 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Jitter buffer between a pipeline and playback. A producer thread keeps an off-heap ring
+ * filled from the source, so a hiccup upstream drains the buffer instead of stalling the
+ * frame clock.
+ *
+ * <p>
+ * There's one producer and one reader, and each only touches its own side of the ring
+ * outside the lock. The source is closed as soon as it's exhausted, which releases its
+ * pipeline without waiting for playback to catch up.
+ * </p>
+ */
+public final class ReadAheadBuffer extends InputStream implements ReadableByteChannel {
+
+    private static final Logger LOGGER = Log.get();
+
+    private static final int TRANSFER_SIZE = 64 * 1024;
+
+    private static final ExecutorService PRODUCERS = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("read-ahead-%d").setDaemon(true).build());
+
+    /**
+     * Fill level of a track's buffer, kept across the streams it opens.
+     */
+    public static final class Metrics {
+
+        // shared with FullBuffer, where capacity is what's been written so far
+        volatile long capacity;
+        volatile long buffered;
+        final AtomicLong underruns = new AtomicLong();
+        final AtomicLong bytesRead = new AtomicLong();
+
+        public long getCapacity() {
+            return capacity;
+        }
+
+        public long getBuffered() {
+            return buffered;
+        }
+
+        public double getFillRatio() {
+            long capacity = this.capacity;
+            return capacity == 0 ? 0 : (double) buffered / capacity;
+        }
+
+        /**
+         * @return how often the reader found the buffer empty after playback started
+         */
+        public long getUnderruns() {
+            return underruns.get();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.get();
+        }
+
+        @Override
+        public String toString() {
+            return "ReadAhead[" + buffered + "/" + capacity + " bytes, "
+                    + underruns.get() + " underruns, " + bytesRead.get() + " read]";
+        }
+
+    }
+
+    /**
+     * @return {@code source} behind a read-ahead buffer of {@code capacity} bytes, or
+     *     {@code source} itself if it's already in memory or buffering is disabled
+     */
+    public static InputStream wrap(InputStream source, int capacity, Metrics metrics) {
+        if (capacity <= 0 || source instanceof ByteBufferInputStream) {
+            return source;
+        }
+        return new ReadAheadBuffer(source, capacity, metrics);
+    }
+
+    private final InputStream source;
+    private final ByteBuffer ring;
+    private final Metrics metrics;
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long readPosition;
+    private long writePosition;
+    private boolean endOfStream;
+    private IOException error;
+    private volatile boolean closed;
+
+    private ReadAheadBuffer(InputStream source, int capacity, Metrics metrics) {
+        this.source = source;
+        this.ring = ByteBuffer.allocateDirect(capacity);
+        this.metrics = metrics;
+        metrics.capacity = capacity;
+        metrics.buffered = 0;
+        PRODUCERS.execute(this::produce);
+    }
+
+    private void produce() {
+        ReadableByteChannel channel = source instanceof ReadableByteChannel ? (ReadableByteChannel) source : null;
+        byte[] transfer = channel == null ? new byte[TRANSFER_SIZE] : null;
+        try (source) {
+            while (true) {
+                long write;
+                int space;
+                lock.lock();
+                try {
+                    while (!closed && (space = ring.capacity() - (int) (writePosition - readPosition)) == 0) {
+                        notFull.await();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    write = writePosition;
+                    space = ring.capacity() - (int) (writePosition - readPosition);
+                } finally {
+                    lock.unlock();
+                }
+                int index = (int) (write % ring.capacity());
+                ByteBuffer target = ring.duplicate();
+                target.limit(index + Math.min(space, ring.capacity() - index)).position(index);
+                int read;
+                if (channel != null) {
+                    read = channel.read(target);
+                } else {
+                    read = source.read(transfer, 0, Math.min(target.remaining(), transfer.length));
+                    if (read > 0) {
+                        target.put(transfer, 0, read);
+                    }
+                }
+                lock.lock();
+                try {
+                    if (read == -1) {
+                        endOfStream = true;
+                    } else {
+                        writePosition += read;
+                        metrics.buffered = (int) (writePosition - readPosition);
+                    }
+                    notEmpty.signal();
+                } finally {
+                    lock.unlock();
+                }
+                if (read == -1) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException());
+        } catch (RuntimeException e) {
+            LOGGER.warn("Read-ahead producer failed", e);
+            fail(new IOException(e));
+        }
+    }
+
+    private void fail(IOException e) {
+        lock.lock();
+        try {
+            error = e;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        long read;
+        int available;
+        lock.lock();
+        try {
+            boolean waited = false;
+            while ((available = (int) (writePosition - readPosition)) == 0 && !endOfStream && error == null) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (!waited && metrics.bytesRead.get() > 0) {
+                    metrics.underruns.incrementAndGet();
+                }
+                waited = true;
+                notEmpty.await();
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (available == 0) {
+                if (error != null) {
+                    throw error;
+                }
+                return -1;
+            }
+            read = readPosition;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+        int index = (int) (read % ring.capacity());
+        int count = Math.min(dst.remaining(), Math.min(available, ring.capacity() - index));
+        ByteBuffer source = ring.duplicate();
+        source.limit(index + count).position(index);
+        dst.put(source);
+        lock.lock();
+        try {
+            readPosition += count;
+            metrics.buffered = (int) (writePosition - readPosition);
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+        metrics.bytesRead.addAndGet(count);
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return read(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Never blocks.
+     *
+     * @return bytes buffered and ready to read
+     */
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return (int) (writePosition - readPosition);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        // unblocks the producer if it's waiting on the source
+        source.close();
+    }
+
+}
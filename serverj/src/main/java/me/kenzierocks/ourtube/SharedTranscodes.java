@@ -0,0 +1,406 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Shares one upstream transcode between everyone playing the same audio at once.
+ *
+ * <p>
+ * Each session fills a ring buffer from a single upstream, and every reader follows it at
+ * its own offset. The upstream only runs a little ahead of the fastest reader, so a new
+ * reader can join from the start until the ring wraps. After that a new session is
+ * started. The upstream is closed once the last reader closes.
+ * </p>
+ *
+ * <p>
+ * A reader that falls a whole ring behind, e.g. a paused guild, is detached rather than
+ * holding everyone else back. Its next read opens its own upstream from where it was.
+ * </p>
+ *
+ * <p>
+ * The upstream waits for admission on a shared ticket, so it's in the best lane of its
+ * readers. A reader that leaves, e.g. a cancelled prefetch, takes only its own lane away.
+ * </p>
+ */
+public enum SharedTranscodes {
+    INSTANCE;
+
+    @FunctionalInterface
+    public interface Upstream {
+
+        /**
+         * @param offset
+         *            bytes into the output to start from, non-zero only for a reader
+         *            that was detached
+         */
+        InputStream open(TranscodeAdmission.Ticket ticket, long offset) throws IOException;
+
+    }
+
+    private static final Logger LOGGER = Log.get();
+
+    private static final int CAPACITY = Environment.SHARED_DECODE_BUFFER_MB * 1024 * 1024;
+    // how far past the fastest reader the upstream may run
+    private static final int LEAD = Math.min(CAPACITY, 2 * 1024 * 1024);
+    private static final int CHUNK = 64 * 1024;
+    // what Session.read returns once the reader is detached
+    private static final int DETACHED = -2;
+
+    private static final ExecutorService PUMP = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("shared-transcode-%d").build());
+
+    private final Map<String, Session> sessions = new HashMap<>();
+
+    /**
+     * Join the running session for {@code key}, or start a new one from {@code upstream}.
+     *
+     * @param ticket
+     *            the reader's place in line, joined to the session's
+     */
+    public InputStream open(String key, TranscodeAdmission.Ticket ticket, Upstream upstream) {
+        if (CAPACITY <= 0) {
+            return new LazyInputStream(() -> upstream.open(ticket, 0));
+        }
+        synchronized (this) {
+            Session session = sessions.get(key);
+            if (session != null) {
+                Reader reader = session.join(ticket);
+                if (reader != null) {
+                    LOGGER.debug("{}: joined shared transcode, {} readers", key, session.readerCount());
+                    return reader;
+                }
+            }
+            session = new Session(key, upstream);
+            sessions.put(key, session);
+            Reader reader = session.join(ticket);
+            PUMP.execute(session);
+            return reader;
+        }
+    }
+
+    private synchronized void remove(String key, Session session) {
+        sessions.remove(key, session);
+    }
+
+    private final class Session implements Runnable {
+
+        private final String key;
+        private final Upstream upstream;
+        private final TranscodeAdmission.Ticket ticket = TranscodeAdmission.INSTANCE.newSharedTicket();
+        // grows up to CAPACITY, wraps only once it's full size
+        private byte[] ring = new byte[Math.min(4 * CHUNK, CAPACITY)];
+        private final List<Reader> readers = new ArrayList<>();
+        private InputStream source;
+        private long written;
+        private boolean eof;
+        private IOException error;
+        private boolean closed;
+
+        Session(String key, Upstream upstream) {
+            this.key = key;
+            this.upstream = upstream;
+        }
+
+        synchronized Reader join(TranscodeAdmission.Ticket readerTicket) {
+            // once the ring wraps, the start is gone
+            if (closed || error != null || written > CAPACITY) {
+                return null;
+            }
+            Reader reader = new Reader(this, readerTicket);
+            readers.add(reader);
+            ticket.join(readerTicket);
+            return reader;
+        }
+
+        synchronized int readerCount() {
+            return readers.size();
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream source = upstream.open(ticket, 0);
+                synchronized (this) {
+                    if (closed) {
+                        source.close();
+                        return;
+                    }
+                    this.source = source;
+                }
+                byte[] chunk = new byte[CHUNK];
+                while (true) {
+                    int space;
+                    synchronized (this) {
+                        while (!closed && writableSpace() == 0) {
+                            wait();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        space = writableSpace();
+                    }
+                    int read = source.read(chunk, 0, Math.min(chunk.length, space));
+                    synchronized (this) {
+                        if (read == -1) {
+                            eof = true;
+                            notifyAll();
+                            return;
+                        }
+                        detachOverrun(written + read);
+                        put(chunk, read);
+                        notifyAll();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e));
+            } catch (InterruptedException e) {
+                fail(new InterruptedIOException());
+            }
+        }
+
+        private void fail(IOException e) {
+            synchronized (this) {
+                if (closed) {
+                    // closing the source is how we stop it
+                    return;
+                }
+                error = e;
+                notifyAll();
+            }
+            // don't hand a broken session to new readers
+            remove(key, this);
+        }
+
+        private int writableSpace() {
+            long fastest = 0;
+            for (Reader reader : readers) {
+                fastest = Math.max(fastest, reader.offset);
+            }
+            // slower readers are detached instead of waited for
+            return (int) Math.max(0, LEAD - (written - fastest));
+        }
+
+        private void detachOverrun(long end) {
+            for (Iterator<Reader> iter = readers.iterator(); iter.hasNext();) {
+                Reader reader = iter.next();
+                if (end - reader.offset <= CAPACITY) {
+                    continue;
+                }
+                // LEAD <= CAPACITY, so the fastest reader is never the one overrun
+                iter.remove();
+                ticket.leave(reader.ticket);
+                reader.detached = true;
+                LOGGER.debug("{}: reader fell {} bytes behind, detaching it", key, written - reader.offset);
+            }
+        }
+
+        private void put(byte[] chunk, int length) {
+            if (written + length > ring.length && ring.length < CAPACITY) {
+                // nothing has wrapped yet, so the data is all at the front
+                int size = (int) Math.min(Math.max(2L * ring.length, written + length), CAPACITY);
+                ring = Arrays.copyOf(ring, size);
+            }
+            int start = (int) (written % ring.length);
+            int first = Math.min(length, ring.length - start);
+            System.arraycopy(chunk, 0, ring, start, first);
+            System.arraycopy(chunk, first, ring, 0, length - first);
+            written += length;
+        }
+
+        /**
+         * @return the bytes read, -1 at the end, or {@link #DETACHED}
+         */
+        int read(Reader reader, byte[] b, int off, int len) throws IOException {
+            try {
+                while (!reader.closed && !reader.detached && !closed
+                        && reader.offset == written && !eof && error == null) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (reader.detached && !reader.closed) {
+                // the session may have closed since, that's no concern of this reader's
+                return DETACHED;
+            }
+            if (reader.closed || closed) {
+                // closing the source doesn't set eof or error, so don't wait for either
+                throw new IOException("Stream closed");
+            }
+            if (reader.offset == written) {
+                if (error != null) {
+                    throw new IOException("Shared transcode failed", error);
+                }
+                return -1;
+            }
+            int start = (int) (reader.offset % ring.length);
+            int count = (int) Math.min(len, Math.min(written - reader.offset, ring.length - start));
+            System.arraycopy(ring, start, b, off, count);
+            reader.offset += count;
+            // may have made room for the upstream
+            notifyAll();
+            return count;
+        }
+
+        void release(Reader reader) {
+            InputStream source;
+            synchronized (this) {
+                if (!readers.remove(reader)) {
+                    return;
+                }
+                // the last one leaving also cancels the upstream's wait for a slot
+                ticket.leave(reader.ticket);
+                if (!readers.isEmpty()) {
+                    notifyAll();
+                    return;
+                }
+                closed = true;
+                source = this.source;
+                notifyAll();
+            }
+            LOGGER.debug("{}: last reader left, closing shared transcode", key);
+            remove(key, this);
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Error closing shared transcode " + key, e);
+                }
+            }
+        }
+
+    }
+
+    private static final class Reader extends InputStream {
+
+        private final Session session;
+        private final TranscodeAdmission.Ticket ticket;
+        // guarded by the session
+        private long offset;
+        private boolean closed;
+        private boolean detached;
+        // this reader's own upstream, once detached
+        private InputStream own;
+
+        Reader(Session session, TranscodeAdmission.Ticket ticket) {
+            this.session = session;
+            this.ticket = ticket;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            InputStream own;
+            synchronized (session) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                own = this.own;
+                if (own == null) {
+                    int read = session.read(this, b, off, len);
+                    if (read != DETACHED) {
+                        return read;
+                    }
+                }
+            }
+            if (own == null) {
+                own = reopen();
+            }
+            return own.read(b, off, len);
+        }
+
+        private InputStream reopen() throws IOException {
+            LOGGER.debug("{}: reopening detached reader at {}", session.key, offset);
+            InputStream opened = session.upstream.open(ticket, offset);
+            synchronized (session) {
+                if (!closed) {
+                    own = opened;
+                    return opened;
+                }
+            }
+            opened.close();
+            throw new IOException("Stream closed");
+        }
+
+        @Override
+        public int available() throws IOException {
+            InputStream own;
+            synchronized (session) {
+                own = this.own;
+                if (own == null) {
+                    return detached ? 0 : (int) Math.min(session.written - offset, Integer.MAX_VALUE);
+                }
+            }
+            return own.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            InputStream own;
+            boolean detached;
+            synchronized (session) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                own = this.own;
+                detached = this.detached;
+            }
+            if (own != null) {
+                own.close();
+            } else if (!detached) {
+                session.release(this);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import me.kenzierocks.ourtube.lava.OurTubeAudioTrack;
+
+/**
+ * Periodically logs a summary of the streaming stats, so cache and pipeline behaviour
+ * can be checked on a running bot.
+ */
+public enum StatsLog {
+    INSTANCE;
+
+    private static final Logger LOGGER = Log.get();
+
+    public void start() {
+        int interval = Environment.STATS_LOG_SECONDS;
+        if (interval <= 0) {
+            return;
+        }
+        AsyncService.GENERIC.scheduleWithFixedDelay(this::logStats, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void logStats() {
+        try {
+            LOGGER.info("Transcode cache: {}", TranscodeCache.INSTANCE.getStats());
+            LOGGER.info("Pipeline admission: {}", TranscodeAdmission.INSTANCE.getStats());
+            CachingStreamUrlResolver.Stats urlCache = YoutubeStreams.getUrlCacheStats();
+            if (urlCache != null) {
+                LOGGER.info("Stream URL cache: {}% hits, {}", Math.round(urlCache.hitRatio() * 100), urlCache);
+            }
+            PipelineSupervisor supervisor = PipelineSupervisor.INSTANCE;
+            LOGGER.info("Pipelines: {} restarts, {} failures, breaker {}", supervisor.getRestartCount(),
+                    supervisor.getFailureCount(), supervisor.isBreakerOpen() ? "open" : "closed");
+            LOGGER.info("Stalled streams closed: {}", StreamWatchdog.INSTANCE.getStallCount());
+            Dissy.getPlayers().forEach((guildId, player) ->
+                    OurTubeAudioTrack.cast(player.getPlayingTrack()).ifPresent(track -> {
+                        ReadAheadBuffer.Metrics readAhead = track.getReadAhead();
+                        LOGGER.info("Read-ahead in {}, playing {}: {}% full, {}", guildId.asString(),
+                                track.getIdentifier(), Math.round(readAhead.getFillRatio() * 100), readAhead);
+                    }));
+        } catch (RuntimeException e) {
+            // an exception would cancel the schedule
+            LOGGER.warn("Unable to log stats", e);
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+/**
+ * Closes streams whose reads have been blocked for too long, so a stalled download
+ * doesn't hold its pipeline open forever.
+ *
+ * <p>
+ * Every watched stream shares one timer wheel. A read only records when it started, and
+ * the wheel checks each stream about once per timeout period. Time spent outside
+ * {@code read}, e.g. waiting on a paused player, never counts as a stall.
+ * </p>
+ */
+public enum StreamWatchdog {
+    INSTANCE;
+
+    private static final Logger LOGGER = Log.get();
+
+    private static final long READ_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+    private static final long NOT_READING = 0;
+
+    private final Timer timer = new HashedWheelTimer(
+            new ThreadFactoryBuilder().setNameFormat("stream-watchdog-%d").setDaemon(true).build(),
+            1, TimeUnit.SECONDS);
+    private final AtomicLong stallCount = new AtomicLong();
+
+    /**
+     * Wrap {@code source} so it's closed if a read blocks for longer than the timeout.
+     * Closing the returned stream stops watching it.
+     */
+    public InputStream watch(String name, InputStream source) {
+        return watch(name, source, () -> {
+        });
+    }
+
+    /**
+     * Like {@link #watch(String, InputStream)}, running {@code onStall} before closing
+     * it.
+     */
+    public InputStream watch(String name, InputStream source, Runnable onStall) {
+        return new WatchedInputStream(name, source, onStall);
+    }
+
+    /**
+     * Watch the output of {@code process}, destroying it on a stall. Closing a pipe
+     * doesn't reliably wake a thread blocked reading it, but the process exiting does.
+     */
+    public InputStream watch(String name, Process process) {
+        return watch(name, process.getInputStream(), process::destroy);
+    }
+
+    /**
+     * @return how many streams have been closed for stalling
+     */
+    public long getStallCount() {
+        return stallCount.get();
+    }
+
+    private final class WatchedInputStream extends FilterInputStream implements TimerTask {
+
+        private final String name;
+        private final Runnable onStall;
+        private volatile long readStart = NOT_READING;
+        private volatile boolean closed;
+        private volatile Timeout timeout;
+
+        WatchedInputStream(String name, InputStream in, Runnable onStall) {
+            super(in);
+            this.name = name;
+            this.onStall = onStall;
+            this.timeout = timer.newTimeout(this, READ_TIMEOUT, TimeUnit.NANOSECONDS);
+        }
+
+        private void startRead() {
+            // nanoTime may be zero, nudge it off the sentinel
+            long now = System.nanoTime();
+            readStart = now == NOT_READING ? 1 : now;
+        }
+
+        @Override
+        public int read() throws IOException {
+            startRead();
+            try {
+                return super.read();
+            } finally {
+                readStart = NOT_READING;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            startRead();
+            try {
+                return super.read(b, off, len);
+            } finally {
+                readStart = NOT_READING;
+            }
+        }
+
+        @Override
+        public void run(Timeout expired) {
+            if (closed) {
+                return;
+            }
+            long start = readStart;
+            long blocked = start == NOT_READING ? 0 : System.nanoTime() - start;
+            if (blocked < READ_TIMEOUT) {
+                timeout = timer.newTimeout(this, READ_TIMEOUT - blocked, TimeUnit.NANOSECONDS);
+                return;
+            }
+            long stalls = stallCount.incrementAndGet();
+            LOGGER.warn("Closing {} after {}s without data ({} stalls so far)",
+                    name, TimeUnit.NANOSECONDS.toSeconds(blocked), stalls);
+            onStall.run();
+            try {
+                close();
+            } catch (IOException e) {
+                LOGGER.warn("Error closing stalled " + name, e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            timeout.cancel();
+            super.close();
+        }
+
+    }
+
+}
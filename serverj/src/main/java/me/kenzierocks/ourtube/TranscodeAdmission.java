@@ -0,0 +1,428 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Limits how many download/transcode pipelines run at once, overall and per guild.
+ *
+ * <p>
+ * Each track holds a {@link Ticket} whose {@link Lane} follows the track from queued, to
+ * next up, to playing. Waiting pipelines are admitted best lane first, then oldest
+ * first. Since a pipeline holds its slot for as long as it runs, the lower lanes may only
+ * fill part of the global limit, leaving room for playing tracks. Playing tracks are
+ * exempt from the per-guild limit, so a guild can't be blocked by its own prefetching.
+ * </p>
+ *
+ * <p>
+ * A pipeline shared by several tracks waits on a {@linkplain #newSharedTicket() shared
+ * ticket}, which takes the best lane, and that lane's guild, of the tickets that joined it.
+ * </p>
+ */
+public enum TranscodeAdmission {
+    INSTANCE;
+
+    private static final Logger LOGGER = Log.get();
+
+    public enum Lane {
+        PLAYING(1.0),
+        NEXT_UP(0.75),
+        SPECULATIVE(0.5);
+
+        // share of the global limit usable by this lane
+        private final double share;
+
+        Lane(double share) {
+            this.share = share;
+        }
+    }
+
+    @AutoValue
+    public abstract static class LaneStats {
+
+        public static LaneStats create(int queued, long admitted, long totalWaitNanos, long maxWaitNanos) {
+            return new AutoValue_TranscodeAdmission_LaneStats(queued, admitted, totalWaitNanos, maxWaitNanos);
+        }
+
+        LaneStats() {
+        }
+
+        public abstract int queued();
+
+        public abstract long admitted();
+
+        public abstract long totalWaitNanos();
+
+        public abstract long maxWaitNanos();
+
+    }
+
+    /**
+     * A track's place in line. Its lane can change while it waits.
+     */
+    public final class Ticket {
+
+        private final String guildId;
+        private Lane lane = Lane.SPECULATIVE;
+        // for a shared ticket, who it's waiting for
+        @Nullable
+        private final List<Ticket> members;
+
+        private Ticket(String guildId, @Nullable List<Ticket> members) {
+            this.guildId = guildId;
+            this.members = members;
+        }
+
+        public Lane getLane() {
+            lock.lock();
+            try {
+                return lane();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void setLane(Lane lane) {
+            lock.lock();
+            try {
+                checkState(members == null, "A shared ticket's lane comes from its members");
+                this.lane = lane;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Fail anything currently waiting on this ticket, e.g. when its prefetch is
+         * cancelled.
+         */
+        public void cancelWaiting() {
+            lock.lock();
+            try {
+                for (Waiter waiter : waiters) {
+                    if (waiter.ticket == this) {
+                        waiter.cancelled = true;
+                    }
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Add {@code member} to this shared ticket.
+         */
+        public void join(Ticket member) {
+            lock.lock();
+            try {
+                checkState(members != null, "Not a shared ticket");
+                members.add(member);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Remove {@code member} from this shared ticket. Once the last member leaves,
+         * anything waiting on it is cancelled.
+         */
+        public void leave(Ticket member) {
+            lock.lock();
+            try {
+                checkState(members != null, "Not a shared ticket");
+                members.remove(member);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // guarded by the lock, as are the rest
+        private Lane lane() {
+            Ticket best = best();
+            return best == null ? Lane.SPECULATIVE : best.lane;
+        }
+
+        @Nullable
+        private String guildId() {
+            Ticket best = best();
+            return best == null ? null : best.guildId;
+        }
+
+        @Nullable
+        private Ticket best() {
+            if (members == null) {
+                return this;
+            }
+            Ticket best = null;
+            for (Ticket member : members) {
+                Ticket candidate = member.best();
+                if (candidate != null && (best == null || candidate.lane.compareTo(best.lane) < 0)) {
+                    best = candidate;
+                }
+            }
+            return best;
+        }
+
+        private boolean isAbandoned() {
+            return members != null && members.isEmpty();
+        }
+
+    }
+
+    private static final class Waiter {
+
+        final Ticket ticket;
+        final long sequence;
+        final long enqueuedAt = System.nanoTime();
+        boolean cancelled;
+
+        Waiter(Ticket ticket, long sequence) {
+            this.ticket = ticket;
+            this.sequence = sequence;
+        }
+
+    }
+
+    /**
+     * A pipeline slot. Released once, by {@link #close()} or by the end of the
+     * {@linkplain #releaseAtEnd(InputStream) stream} it's attached to.
+     */
+    public final class Permit implements AutoCloseable {
+
+        private final String guildId;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(String guildId) {
+            this.guildId = guildId;
+        }
+
+        /**
+         * @return {@code stream}, releasing this permit when it ends or is closed
+         */
+        public InputStream releaseAtEnd(InputStream stream) {
+            return new FilterInputStream(stream) {
+
+                @Override
+                public int read() throws IOException {
+                    int read = super.read();
+                    if (read == -1) {
+                        Permit.this.close();
+                    }
+                    return read;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read == -1) {
+                        Permit.this.close();
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        Permit.this.close();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            lock.lock();
+            try {
+                active--;
+                activeByGuild.computeIfPresent(guildId, (k, count) -> count == 1 ? null : count - 1);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+    private final int globalLimit = Math.max(1, Environment.MAX_PIPELINES);
+    private final int guildLimit = Math.max(1, Environment.MAX_PIPELINES_PER_GUILD);
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final Map<String, Integer> activeByGuild = new HashMap<>();
+    private final Map<Lane, long[]> admittedStats = new EnumMap<>(Lane.class);
+    private int active;
+    private long nextSequence;
+
+    TranscodeAdmission() {
+        for (Lane lane : Lane.values()) {
+            // admitted, total wait, max wait
+            admittedStats.put(lane, new long[3]);
+        }
+    }
+
+    public Ticket newTicket(String guildId) {
+        return new Ticket(guildId, null);
+    }
+
+    /**
+     * @return a ticket with no lane of its own, for the members that
+     *     {@linkplain Ticket#join(Ticket) join} it
+     */
+    public Ticket newSharedTicket() {
+        return new Ticket(null, new ArrayList<>());
+    }
+
+    /**
+     * Wait for a pipeline slot.
+     *
+     * @throws IOException
+     *             if the wait is {@linkplain Ticket#cancelWaiting() cancelled} or
+     *             interrupted
+     */
+    public Permit acquire(Ticket ticket) throws IOException {
+        lock.lock();
+        try {
+            Waiter waiter = new Waiter(ticket, nextSequence++);
+            waiters.add(waiter);
+            try {
+                while (next() != waiter) {
+                    if (isCancelled(waiter)) {
+                        throw new IOException("Cancelled while waiting for a pipeline slot");
+                    }
+                    changed.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a pipeline slot");
+            } finally {
+                waiters.remove(waiter);
+                // whoever is next may have changed
+                changed.signalAll();
+            }
+            String guildId = ticket.guildId();
+            Lane lane = ticket.lane();
+            active++;
+            activeByGuild.merge(guildId, 1, Integer::sum);
+            long waited = System.nanoTime() - waiter.enqueuedAt;
+            long[] stats = admittedStats.get(lane);
+            stats[0]++;
+            stats[1] += waited;
+            stats[2] = Math.max(stats[2], waited);
+            LOGGER.debug("Admitted a {} pipeline after {}ms, {} running",
+                    lane, TimeUnit.NANOSECONDS.toMillis(waited), active);
+            return new Permit(guildId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the best waiter that fits under its lane's and guild's limits
+    private Waiter next() {
+        Waiter best = null;
+        for (Waiter waiter : waiters) {
+            if (isCancelled(waiter) || !fits(waiter.ticket)) {
+                continue;
+            }
+            if (best == null || isBefore(waiter, best)) {
+                best = waiter;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isCancelled(Waiter waiter) {
+        return waiter.cancelled || waiter.ticket.isAbandoned();
+    }
+
+    private boolean fits(Ticket ticket) {
+        Lane lane = ticket.lane();
+        int laneLimit = Math.max(1, (int) (globalLimit * lane.share));
+        if (active >= laneLimit) {
+            return false;
+        }
+        return lane == Lane.PLAYING
+                || activeByGuild.getOrDefault(ticket.guildId(), 0) < guildLimit;
+    }
+
+    private static boolean isBefore(Waiter a, Waiter b) {
+        int byLane = a.ticket.lane().compareTo(b.ticket.lane());
+        return byLane != 0 ? byLane < 0 : a.sequence < b.sequence;
+    }
+
+    /**
+     * @return per lane, the current queue depth and the waits of admitted pipelines
+     */
+    public ImmutableMap<Lane, LaneStats> getStats() {
+        lock.lock();
+        try {
+            Map<Lane, Integer> queued = Maps.newEnumMap(Lane.class);
+            for (Waiter waiter : waiters) {
+                queued.merge(waiter.ticket.lane(), 1, Integer::sum);
+            }
+            ImmutableMap.Builder<Lane, LaneStats> stats = ImmutableMap.builder();
+            admittedStats.forEach((lane, s) -> stats.put(lane,
+                    LaneStats.create(queued.getOrDefault(lane, 0), s[0], s[1], s[2])));
+            return stats.build();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,414 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * Size-bounded, least-recently-used disk cache of transcoded audio, keyed by video ID
+ * and output format.
+ *
+ * <p>
+ * Entries are written to a temporary file as they're transcoded, and only moved into
+ * place once the transcode finishes cleanly, so a crash can't leave a partial entry.
+ * Hits are read through a memory mapping.
+ * </p>
+ */
+public enum TranscodeCache {
+    INSTANCE;
+
+    private static final Logger LOGGER = Log.get();
+
+    // YouTube IDs and our format names, nothing that could escape the directory
+    private static final Pattern SAFE_KEY = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    @AutoValue
+    public abstract static class Stats {
+
+        public static Stats create(long hitCount, long missCount, long bytesServed,
+                                   long bytesWritten, long evictionCount, long sizeBytes) {
+            return new AutoValue_TranscodeCache_Stats(hitCount, missCount, bytesServed,
+                    bytesWritten, evictionCount, sizeBytes);
+        }
+
+        Stats() {
+        }
+
+        public abstract long hitCount();
+
+        public abstract long missCount();
+
+        public abstract long bytesServed();
+
+        public abstract long bytesWritten();
+
+        public abstract long evictionCount();
+
+        public abstract long sizeBytes();
+
+    }
+
+    /**
+     * Checked when the source ends, decides if what was read is a complete entry.
+     */
+    @FunctionalInterface
+    public interface CompletionCheck {
+
+        boolean completedNormally() throws InterruptedException;
+
+    }
+
+    private final Path directory = Environment.TRANSCODE_CACHE_DIR;
+    private final long maxBytes = Environment.TRANSCODE_CACHE_MB * 1024L * 1024L;
+    // mapped reads are limited to int positions
+    private final long maxEntryBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+    // access-ordered, eldest first
+    private final Map<String, Long> entrySizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final boolean enabled;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    TranscodeCache() {
+        enabled = maxBytes > 0 && loadEntries();
+    }
+
+    private boolean loadEntries() {
+        try {
+            Files.createDirectories(directory);
+            List<Path> files;
+            try (Stream<Path> list = Files.list(directory)) {
+                files = list.collect(Collectors.toList());
+            }
+            files.sort(Comparator.comparing(TranscodeCache::lastModified));
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // left over from a crash
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                long size = Files.size(file);
+                entrySizes.put(name, size);
+                totalBytes += size;
+            }
+            evict();
+            LOGGER.info("Transcode cache at {} holds {} entries, {} bytes",
+                    directory, entrySizes.size(), totalBytes);
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Transcode cache at " + directory + " is unusable, disabling it", e);
+            return false;
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static String fileName(String videoId, String format) {
+        return videoId + "." + format;
+    }
+
+    private boolean isCacheable(String videoId, String format) {
+        return enabled && SAFE_KEY.matcher(videoId).matches() && SAFE_KEY.matcher(format).matches();
+    }
+
+    /**
+     * @return the cached audio, or {@code null} if it isn't cached
+     */
+    @Nullable
+    public ByteBufferInputStream openCached(String videoId, String format) {
+        if (!isCacheable(videoId, format)) {
+            return null;
+        }
+        String name = fileName(videoId, format);
+        synchronized (this) {
+            // refreshes the entry's recency as well
+            if (entrySizes.get(name) == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+        }
+        Path file = directory.resolve(name);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel closes, and even after eviction
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            hitCount.incrementAndGet();
+            LOGGER.debug("{}: cache hit", name);
+            return new CountingInputStream(mapped);
+        } catch (IOException e) {
+            LOGGER.warn("Dropping unreadable cache entry " + name, e);
+            remove(name);
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Copy {@code source} into the cache as it is read. The entry is kept if the source is
+     * read to the end and {@code check} passes, and discarded otherwise.
+     */
+    public InputStream cacheWhileReading(String videoId, String format, InputStream source,
+                                         CompletionCheck check) {
+        if (!isCacheable(videoId, format)) {
+            return source;
+        }
+        String name = fileName(videoId, format);
+        try {
+            Path temp = Files.createTempFile(directory, name + ".", TEMP_SUFFIX);
+            return new CachingInputStream(source, name, temp, check);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to cache " + name, e);
+            return source;
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (this) {
+            return Stats.create(hitCount.get(), missCount.get(), bytesServed.get(),
+                    bytesWritten.get(), evictionCount.get(), totalBytes);
+        }
+    }
+
+    private void commit(String name, Path temp, long size) throws IOException {
+        Files.move(temp, directory.resolve(name),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        synchronized (this) {
+            Long old = entrySizes.put(name, size);
+            totalBytes += size - (old == null ? 0 : old);
+            evict();
+        }
+        bytesWritten.addAndGet(size);
+        LOGGER.debug("{}: cached, {}", name, getStats());
+    }
+
+    private synchronized void remove(String name) {
+        Long size = entrySizes.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        try {
+            Files.deleteIfExists(directory.resolve(name));
+        } catch (IOException e) {
+            LOGGER.warn("Unable to delete cache entry " + name, e);
+        }
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> iter = entrySizes.entrySet().iterator();
+        while (totalBytes > maxBytes && iter.hasNext()) {
+            Map.Entry<String, Long> eldest = iter.next();
+            iter.remove();
+            totalBytes -= eldest.getValue();
+            evictionCount.incrementAndGet();
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                LOGGER.warn("Unable to delete cache entry " + eldest.getKey(), e);
+            }
+        }
+    }
+
+    // a track often stops early, so count what's read rather than what's mapped
+    private final class CountingInputStream extends ByteBufferInputStream {
+
+        CountingInputStream(ByteBuffer buffer) {
+            super(buffer);
+        }
+
+        private int count(int read) {
+            if (read > 0) {
+                bytesServed.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return count(super.read(dst));
+        }
+
+        @Override
+        public int read() {
+            int read = super.read();
+            count(read == -1 ? -1 : 1);
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return count(super.read(b, off, len));
+        }
+
+    }
+
+    private final class CachingInputStream extends InputStream {
+
+        private final InputStream source;
+        private final String name;
+        private final Path temp;
+        private final CompletionCheck check;
+        private FileChannel out;
+        private long written;
+
+        CachingInputStream(InputStream source, String name, Path temp, CompletionCheck check)
+                throws IOException {
+            this.source = source;
+            this.name = name;
+            this.temp = temp;
+            this.check = check;
+            this.out = FileChannel.open(temp, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = source.read(b, off, len);
+            if (out == null) {
+                return read;
+            }
+            if (read == -1) {
+                finish();
+            } else if (read > 0) {
+                write(ByteBuffer.wrap(b, off, read));
+            }
+            return read;
+        }
+
+        private void write(ByteBuffer data) {
+            written += data.remaining();
+            if (written > maxEntryBytes) {
+                LOGGER.debug("{}: too large to cache", name);
+                abandon();
+                return;
+            }
+            try {
+                while (data.hasRemaining()) {
+                    out.write(data);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Error writing cache entry " + name, e);
+                abandon();
+            }
+        }
+
+        private void finish() {
+            FileChannel out = this.out;
+            this.out = null;
+            // waits on the transcoder, keep it off the playback thread
+            AsyncService.GENERIC.execute(() -> {
+                try (out) {
+                    if (!check.completedNormally()) {
+                        LOGGER.debug("{}: transcode didn't finish cleanly, not caching", name);
+                        Files.deleteIfExists(temp);
+                        return;
+                    }
+                    out.force(true);
+                    commit(name, temp, written);
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to cache " + name, e);
+                    deleteTemp();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    deleteTemp();
+                }
+            });
+        }
+
+        private void abandon() {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+            deleteTemp();
+        }
+
+        private void deleteTemp() {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to delete " + temp, e);
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return source.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (source) {
+                if (out != null) {
+                    // closed early, what we have is incomplete
+                    abandon();
+                }
+            }
+        }
+
+    }
+
+}
@@ -42,6 +42,7 @@ import com.google.common.base.Splitter;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.FutureCallback;
@@ -59,8 +60,8 @@ import java.security.GeneralSecurityException;
 import java.time.Duration;
 import java.util.List;
 import java.util.Objects;
+import java.util.OptionalInt;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
@@ -137,24 +138,99 @@ public enum YoutubeAccess {
         });
     }
 
-    public List<String> getSongIds(String songUrl) {
-        List<String> ids = getSongIdsInternal(songUrl);
-        if (ids.isEmpty()) {
-            LOGGER.warn("No IDs discovered for '{}'!", songUrl);
+    /**
+     * Song IDs from a URL, a page at a time. Each playlist page is only requested when
+     * it's asked for, so callers can start on the first page, or stop early.
+     */
+    public abstract static class SongIdPages extends AbstractIterator<List<String>> {
+
+        static SongIdPages of(List<String> ids) {
+            return new SongIdPages() {
+
+                private boolean returned;
+
+                @Override
+                public OptionalInt getTotal() {
+                    return OptionalInt.of(ids.size());
+                }
+
+                @Override
+                protected List<String> computeNext() {
+                    if (returned) {
+                        return endOfData();
+                    }
+                    returned = true;
+                    return ids;
+                }
+            };
+        }
+
+        /**
+         * @return how many songs there are in all, if it's known yet
+         */
+        public abstract OptionalInt getTotal();
+
+    }
+
+    private final class PlaylistPages extends SongIdPages {
+
+        private final String list;
+        private String pageToken = "";
+        private volatile Integer total;
+
+        PlaylistPages(String list) {
+            this.list = list;
+        }
+
+        @Override
+        public OptionalInt getTotal() {
+            Integer total = this.total;
+            return total == null ? OptionalInt.empty() : OptionalInt.of(total);
+        }
+
+        @Override
+        protected List<String> computeNext() {
+            if (pageToken == null) {
+                return endOfData();
+            }
+            PlaylistItemListResponse response;
+            try {
+                PlaylistItems.List itemRequest = yt3.playlistItems().list(List.of("contentDetails"))
+                        .setPlaylistId(list)
+                        .setKey(Environment.YOUTUBE_API_KEY)
+                        .setMaxResults(50L);
+                if (!pageToken.isEmpty()) {
+                    itemRequest.setPageToken(pageToken);
+                }
+                response = itemRequest.execute();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error retrieving playlist items", e);
+            }
+            pageToken = response.getNextPageToken();
+            if (response.getPageInfo() != null) {
+                total = response.getPageInfo().getTotalResults();
+            }
+            List<String> ids = response.getItems().stream()
+                    .map(PlaylistItem::getContentDetails)
+                    .filter(Objects::nonNull)
+                    .map(PlaylistItemContentDetails::getVideoId)
+                    .collect(toImmutableList());
+            LOGGER.debug("/playlist IDs: {}", ids);
+            return ids;
         }
-        return ids;
+
     }
 
-    private List<String> getSongIdsInternal(String songUrl) {
+    public SongIdPages getSongIdPages(String songUrl) {
         URI url;
         try {
             url = new URI(songUrl);
         } catch (URISyntaxException e) {
             LOGGER.debug("Bad song URL provided", e);
-            return ImmutableList.of();
+            return SongIdPages.of(ImmutableList.of());
         }
         if (url.getHost() == null) {
-            return ImmutableList.of();
+            return SongIdPages.of(ImmutableList.of());
         }
         if (url.getHost().endsWith("youtube.com")) {
             QueryStringDecoder decoder = new QueryStringDecoder(url);
@@ -162,59 +238,24 @@ public enum YoutubeAccess {
                 case "/watch":
                     List<String> watch = decoder.parameters().get("v");
                     LOGGER.debug("/watch IDs: {}", watch);
-                    return watch == null ? ImmutableList.of() : ImmutableList.copyOf(watch);
+                    return SongIdPages.of(watch == null ? ImmutableList.of() : ImmutableList.copyOf(watch));
                 case "/playlist":
                     String list = Iterables.getFirst(decoder.parameters().get("list"), null);
                     if (list == null) {
-                        return ImmutableList.of();
+                        return SongIdPages.of(ImmutableList.of());
                     }
-                    List<String> playlistSongIds = getPlaylistSongIds(list);
-                    LOGGER.debug("/playlist IDs: {}", playlistSongIds);
-                    return playlistSongIds;
+                    return new PlaylistPages(list);
                 default:
-                    return ImmutableList.of();
+                    return SongIdPages.of(ImmutableList.of());
             }
         }
         if (url.getHost().equals("youtu.be")) {
             Iterable<String> pathParts = Splitter.on('/').omitEmptyStrings().split(url.getPath());
             ImmutableList<String> beIds = ImmutableList.copyOf(Iterables.limit(pathParts, 1));
             LOGGER.debug("youtu.be IDs: {}", beIds);
-            return beIds;
-        }
-        return ImmutableList.of();
-    }
-
-    private List<String> getPlaylistSongIds(String list) {
-        try {
-            return playlistStream(list)
-                    .map(PlaylistItem::getContentDetails)
-                    .filter(Objects::nonNull)
-                    .map(PlaylistItemContentDetails::getVideoId)
-                    .collect(toImmutableList());
-        } catch (Exception e) {
-            LOGGER.error("Error retrieving playlist items", e);
-            return ImmutableList.of();
-        }
-
-    }
-
-    private Stream<PlaylistItem> playlistStream(String list) throws IOException {
-        Stream<PlaylistItem> current = Stream.of();
-        String pageToken = "";
-        while (pageToken != null) {
-            PlaylistItems.List itemRequest = yt3.playlistItems().list(List.of("contentDetails"))
-                    .setPlaylistId(list)
-                    .setKey(Environment.YOUTUBE_API_KEY)
-                    .setMaxResults(50L);
-            if (!pageToken.isEmpty()) {
-                itemRequest.setPageToken(pageToken);
-            }
-            PlaylistItemListResponse response = itemRequest
-                    .execute();
-            current = Stream.concat(current, response.getItems().stream());
-            pageToken = response.getNextPageToken();
+            return SongIdPages.of(beIds);
         }
-        return current;
+        return SongIdPages.of(ImmutableList.of());
     }
 
 }
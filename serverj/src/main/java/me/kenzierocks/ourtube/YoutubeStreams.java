@@ -25,77 +25,316 @@
 
 package me.kenzierocks.ourtube;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteOrder;
 import java.util.BitSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
 
 import org.slf4j.Logger;
 
-import com.google.common.io.ByteStreams;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.collect.ImmutableList;
 
 public class YoutubeStreams {
 
     private static final Logger LOGGER = Log.get();
 
-    private static final AudioFormat FFMPEG_OUT_FORMAT = new AudioFormat(
+    private static final boolean NATIVE_BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+    // FFmpeg name for 16-bit PCM in our byte order, e.g. s16le
+    private static final String FFMPEG_PCM = NATIVE_BIG_ENDIAN ? "s16be" : "s16le";
+
+    /**
+     * PCM format produced by {@link #newStream(SongData)}. Samples are in native byte
+     * order, so they can be read straight into a native-order buffer.
+     */
+    public static final AudioFormat PCM_FORMAT = new AudioFormat(
             AudioFormat.Encoding.PCM_SIGNED,
             48000, // sample rate
             16, // sample size (bits)
             2, // channels
             4, // frame size (2 bytes x channels)
             48000, // frame rate
-            true); // big endian
+            NATIVE_BIG_ENDIAN);
+
+    private static final List<String> PCM_OUTPUT = ImmutableList.of(
+            "-ar", "48000", "-ac", "2", "-acodec", "pcm_" + FFMPEG_PCM, "-f", FFMPEG_PCM);
+    // remux only, FFmpeg refuses to write this if the source isn't Opus
+    private static final List<String> OPUS_OUTPUT = ImmutableList.of(
+            "-vn", "-acodec", "copy", "-f", "opus");
+    private static final Pattern FFMPEG_DURATION = Pattern.compile(
+            "Duration: (\\d+):(\\d{2}):(\\d{2}(?:\\.\\d+)?)");
+
+    /**
+     * @param ticket
+     *            the track's place in line for a pipeline, if one is needed
+     * @return PCM audio in {@link #PCM_FORMAT}
+     */
+    public static InputStream newStream(SongData songData, TranscodeAdmission.Ticket ticket) {
+        return newStream(songData, ticket, 0);
+    }
+
+    /**
+     * @param ticket
+     *            the track's place in line for a pipeline, if one is needed
+     * @param startMs
+     *            where in the song to start
+     * @return PCM audio in {@link #PCM_FORMAT}
+     */
+    public static InputStream newStream(SongData songData, TranscodeAdmission.Ticket ticket, long startMs) {
+        return newStream(songData, ticket, FFMPEG_PCM, PCM_OUTPUT, startMs);
+    }
 
     /**
-     * @return PCM audio tuned to discord4j internal specs for optimization
+     * @param ticket
+     *            the track's place in line for a pipeline, if one is needed
+     * @return the source's Opus packets in an Ogg container, without re-encoding.
+     *     Empty if the source is not Opus.
      */
-    public static InputStream newStream(SongData songData) {
+    public static InputStream newOpusStream(SongData songData, TranscodeAdmission.Ticket ticket) {
+        return newOpusStream(songData, ticket, 0);
+    }
+
+    /**
+     * @param ticket
+     *            the track's place in line for a pipeline, if one is needed
+     * @param startMs
+     *            where in the song to start
+     * @return the source's Opus packets in an Ogg container, without re-encoding.
+     *     Empty if the source is not Opus.
+     */
+    public static InputStream newOpusStream(SongData songData, TranscodeAdmission.Ticket ticket, long startMs) {
+        return newStream(songData, ticket, "opus", OPUS_OUTPUT, startMs);
+    }
+
+    private static InputStream newStream(SongData songData, TranscodeAdmission.Ticket ticket,
+                                         String format, List<String> outputArgs, long startMs) {
         String url = "https://www.youtube.com/watch?v=" + songData.getId();
-        LOGGER.debug("{}: Acquring download...", url);
-        InputStream dl = callYtdl(url);
+        if (startMs > 0) {
+            // part of a song is no use to the cache, or to anyone else
+            return new LazyInputStream(() -> transcode(songData, ticket, url, format, outputArgs, startMs));
+        }
+        InputStream cached = TranscodeCache.INSTANCE.openCached(songData.getId(), format);
+        if (cached != null) {
+            LOGGER.debug("{}: Replaying cached {}", url, format);
+            if (format.equals(FFMPEG_PCM) && cached instanceof ByteBufferInputStream) {
+                long frames = ((ByteBufferInputStream) cached).length() / PCM_FORMAT.getFrameSize();
+                ProbedDurations.INSTANCE.record(songData.getId(),
+                        frames * 1000 / (long) PCM_FORMAT.getFrameRate());
+            }
+            return cached;
+        }
+        // guilds playing this at the same time share one transcode
+        return SharedTranscodes.INSTANCE.open(songData.getId() + "." + format, ticket,
+                (upstreamTicket, offset) -> offset == 0
+                        ? transcode(songData, upstreamTicket, url, format, outputArgs, 0)
+                        : resume(songData, upstreamTicket, url, format, outputArgs, offset));
+    }
+
+    /**
+     * Open a stream for a reader that fell out of a shared transcode.
+     *
+     * @param offset
+     *            bytes into the output the reader got to
+     */
+    private static InputStream resume(SongData songData, TranscodeAdmission.Ticket ticket,
+                                      String url, String format, List<String> outputArgs,
+                                      long offset)
+            throws IOException {
+        // the transcode it fell out of has often finished by now
+        InputStream stream = TranscodeCache.INSTANCE.openCached(songData.getId(), format);
+        long skip = offset;
+        if (stream == null) {
+            if (format.equals(FFMPEG_PCM)) {
+                // same as a supervisor restart: seek to the last whole millisecond, skip the rest
+                long resumedMs = offset / PCM_FORMAT.getFrameSize() * 1000 / (long) PCM_FORMAT.getFrameRate();
+                skip = offset - resumedMs * (long) PCM_FORMAT.getFrameRate() / 1000 * PCM_FORMAT.getFrameSize();
+                stream = transcode(songData, ticket, url, format, outputArgs, resumedMs);
+            } else {
+                // a remux can't be seeked by bytes, replay it from the same source instead
+                stream = transcode(songData, ticket, url, format, outputArgs, 0);
+            }
+        }
+        try {
+            stream.skipNBytes(skip);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        return stream;
+    }
+
+    private static InputStream transcode(SongData songData, TranscodeAdmission.Ticket ticket,
+                                         String url, String format, List<String> outputArgs,
+                                         long startMs)
+            throws IOException {
+        TranscodeAdmission.Permit permit = TranscodeAdmission.INSTANCE.acquire(ticket);
+        PipelineSupervisor.SupervisedStream output;
+        try {
+            // decoded PCM comes out the same every time, a remuxed container might not
+            output = PipelineSupervisor.INSTANCE.open(url,
+                    format.equals(FFMPEG_PCM),
+                    offset -> startPipeline(songData, url, format, outputArgs, startMs, offset));
+        } catch (IOException | RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+        if (startMs > 0) {
+            return permit.releaseAtEnd(output);
+        }
+        return permit.releaseAtEnd(
+                TranscodeCache.INSTANCE.cacheWhileReading(songData.getId(), format, output, output));
+    }
+
+    /**
+     * @param offset
+     *            bytes into the output to resume from, only ever non-zero for PCM
+     */
+    private static PipelineSupervisor.Attempt startPipeline(SongData songData, String url,
+                                                           String format, List<String> outputArgs,
+                                                           long startMs, long offset)
+            throws IOException {
+        // seek to the last whole millisecond before the offset, the supervisor skips the rest
+        long resumedMs = offset / PCM_FORMAT.getFrameSize() * 1000 / (long) PCM_FORMAT.getFrameRate();
+        long outputOffset = resumedMs * (long) PCM_FORMAT.getFrameRate() / 1000 * PCM_FORMAT.getFrameSize();
+        long seekMs = startMs + resumedMs;
+        String streamUrl = resolveStreamUrl(songData.getId());
+        // the Opus remux still needs the ffmpeg process, as does seeking
+        if (Environment.IN_PROCESS_DECODE && format.equals(FFMPEG_PCM) && seekMs == 0) {
+            if (streamUrl != null) {
+                InputStream download = openDownload(songData.getId(), url, streamUrl);
+                if (download != null) {
+                    return decodeInProcess(songData, url, download, ImmutableList.of(), ImmutableList.of());
+                }
+            }
+            LOGGER.debug("{}: Acquring download...", url);
+            Process ytdl = callYtdl(url);
+            return decodeInProcess(songData, url, StreamWatchdog.INSTANCE.watch("ytdl output", ytdl),
+                    ImmutableList.of(ytdl),
+                    ImmutableList.of(ProcessErrorDrain.INSTANCE.watch("ytdl", ytdl, YTDL_OK)));
+        }
 
         LOGGER.debug("{}: Transcoding...", url);
-        InputStream ffmpeg = callFfmpeg(dl);
-        return ffmpeg;
+        List<Process> pipeline = streamUrl != null
+                ? ImmutableList.of(callFfmpeg(streamUrl, seekMs, outputArgs))
+                : callYtdlIntoFfmpeg(url, seekMs, outputArgs);
+        Process ffmpeg = pipeline.get(pipeline.size() - 1);
+        ImmutableList.Builder<CompletableFuture<ProcessErrorDrain.Exit>> exits = ImmutableList.builder();
+        if (pipeline.size() > 1) {
+            exits.add(ProcessErrorDrain.INSTANCE.watch("ytdl", pipeline.get(0), YTDL_OK));
+        }
+        CompletableFuture<ProcessErrorDrain.Exit> ffmpegExit = ProcessErrorDrain.INSTANCE.watch("FFmpeg", ffmpeg, FFMPEG_OK,
+                errors -> probeDuration(songData.getId(), errors));
+        if (streamUrl != null) {
+            // before the supervisor sees the exit, so a restart resolves a fresh URL
+            ffmpegExit = ffmpegExit.thenApply(exit -> {
+                if (exit.getErrorTail().contains("403 Forbidden")) {
+                    invalidateStreamUrl(songData.getId());
+                }
+                return exit;
+            });
+        }
+        exits.add(ffmpegExit);
+        // read unbuffered, the track pulls a whole frame per read
+        InputStream output = StreamWatchdog.INSTANCE.watch("FFmpeg output", ffmpeg.getInputStream(),
+                () -> pipeline.forEach(Process::destroy));
+        return new PipelineSupervisor.Attempt(output, outputOffset, pipeline, exits.build(), () -> true);
+    }
+
+    /**
+     * FFmpeg describes its input before it starts, including the container's duration.
+     *
+     * @return if there's nothing more to look for
+     */
+    private static boolean probeDuration(String videoId, String errors) {
+        Matcher matcher = FFMPEG_DURATION.matcher(errors);
+        if (!matcher.find()) {
+            return errors.contains("Duration: N/A");
+        }
+        long minutes = Long.parseLong(matcher.group(1)) * 60 + Long.parseLong(matcher.group(2));
+        long durationMs = minutes * 60_000 + Math.round(Double.parseDouble(matcher.group(3)) * 1000);
+        ProbedDurations.INSTANCE.record(videoId, durationMs);
+        return true;
+    }
+
+    private static PipelineSupervisor.Attempt decodeInProcess(SongData songData, String url,
+                                                              InputStream download,
+                                                              List<Process> processes,
+                                                              List<CompletableFuture<ProcessErrorDrain.Exit>> exits)
+            throws IOException {
+        LOGGER.debug("{}: Decoding in-process...", url);
+        FfmpegDecoder decoder;
+        try {
+            decoder = FfmpegDecoder.open(download);
+        } catch (IOException e) {
+            processes.forEach(Process::destroy);
+            throw e;
+        }
+        ProbedDurations.INSTANCE.record(songData.getId(), decoder.getDurationMs());
+        return new PipelineSupervisor.Attempt(decoder, processes, exits, decoder::isFinished);
+    }
+
+    private static volatile StreamUrlResolver urlResolver = Environment.RESOLVER_WORKERS > 0
+            ? new CachingStreamUrlResolver(new NodeResolverPool(Environment.RESOLVER_WORKERS))
+            : null;
+
+    /**
+     * Replace how stream URLs are resolved, e.g. with a fake. With {@code null}, every
+     * song is downloaded by spawning {@code ytdl}.
+     */
+    public static void setUrlResolver(@Nullable StreamUrlResolver resolver) {
+        urlResolver = resolver;
     }
 
     /**
-     * @return PCM audio tuned to discord4j internal specs for optimization
+     * @return the stream URL cache's stats, or {@code null} if URLs aren't cached
      */
-    public static AudioInputStream annotateStream(SongData songData, InputStream stream) {
-        float frameLength = computeFrameLength(songData);
-        return new AudioInputStream(stream, FFMPEG_OUT_FORMAT, (long) Math.ceil(frameLength));
+    @Nullable
+    public static CachingStreamUrlResolver.Stats getUrlCacheStats() {
+        StreamUrlResolver resolver = urlResolver;
+        return resolver instanceof CachingStreamUrlResolver
+                ? ((CachingStreamUrlResolver) resolver).getStats()
+                : null;
     }
 
-    private static float computeFrameLength(SongData songData) {
-        // R = frame rate, in frames/sec
-        // Dms = duration, in milliseconds
-        // L = frame length, in frames
-        // Ds = duration, in seconds
-        // Ds = Dms / 1000
-        // L = Ds * R
-        // we move the division to R because it's lossless that way
-        float frameRate = FFMPEG_OUT_FORMAT.getFrameRate();
-        float frameLength = (songData.getDuration() * (frameRate / 1000f));
-        return frameLength;
+    @Nullable
+    private static String resolveStreamUrl(String videoId) {
+        StreamUrlResolver resolver = urlResolver;
+        if (resolver == null) {
+            return null;
+        }
+        try {
+            return resolver.resolve(videoId);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to resolve " + videoId + ", falling back to ytdl", e);
+            return null;
+        }
     }
 
-    private static final ExecutorService CHECKER = Executors.newCachedThreadPool(
-            new ThreadFactoryBuilder().setNameFormat("stream-checker-%d").setPriority(Thread.MIN_PRIORITY).build());
-    private static final ExecutorService WRITER = Executors.newCachedThreadPool(
-            new ThreadFactoryBuilder().setNameFormat("stream-writer-%d").build());
+    private static void invalidateStreamUrl(String videoId) {
+        StreamUrlResolver resolver = urlResolver;
+        if (resolver != null) {
+            resolver.invalidate(videoId);
+        }
+    }
+
+    @Nullable
+    private static InputStream openDownload(String videoId, String url, String streamUrl) {
+        try {
+            InputStream download = RangeDownloader.open(streamUrl, Environment.DOWNLOAD_CONNECTIONS,
+                    () -> invalidateStreamUrl(videoId));
+            return StreamWatchdog.INSTANCE.watch("download", download);
+        } catch (IOException e) {
+            LOGGER.warn(url + ": Unable to open stream URL, falling back to ytdl", e);
+            return null;
+        }
+    }
 
     private static final BitSet YTDL_OK = new BitSet();
     static {
@@ -111,85 +350,72 @@ public class YoutubeStreams {
         FFMPEG_OK.set(141);
     }
 
-    private static InputStream callYtdl(String url) {
+    private static ProcessBuilder ytdl(String url) {
+        return new ProcessBuilder("ytdl", url, "--filter", "audio");
+    }
+
+    /**
+     * Input options to start at {@code startMs}, to the millisecond: {@code -ss} before the
+     * input. With a URL, FFmpeg seeks within the download. A pipe can't seek, so FFmpeg
+     * reads the input up to there and throws it away. Either way, the output starts at
+     * {@code startMs}.
+     */
+    private static List<String> seekArgs(long startMs) {
+        if (startMs <= 0) {
+            return ImmutableList.of();
+        }
+        return ImmutableList.of("-ss", String.format(Locale.ROOT, "%.3f", startMs / 1000.0));
+    }
+
+    private static ProcessBuilder ffmpeg(List<String> inputArgs, List<String> outputArgs) {
+        return new ProcessBuilder(ImmutableList.<String>builder()
+                .add("ffmpeg")
+                .addAll(inputArgs)
+                .addAll(outputArgs)
+                .add("pipe:1")
+                .build());
+    }
+
+    private static Process callYtdl(String url) {
         try {
-            Process ytdl = new ProcessBuilder("ytdl", url, "--filter", "audio")
-                    .start();
+            Process ytdl = ytdl(url).start();
             ytdl.getOutputStream().close();
-            startChecker("ytdl", ytdl, YTDL_OK);
-            // no buffering for this stream :)
-            // it gets buffered in callFfmpeg
-            return ytdl.getInputStream();
+            return ytdl;
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
     }
 
-    // 128kb buffer -- audio is large :)
-    private static final int LARGE_BUFFER = 128 * 1024;
-    private static final long READ_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
-
-    private static InputStream callFfmpeg(InputStream source) {
+    // ytdl writes straight into ffmpeg over an OS pipe, nothing to copy
+    private static List<Process> callYtdlIntoFfmpeg(String url, long startMs, List<String> outputArgs) {
         try {
-            Process ffmpeg = new ProcessBuilder("ffmpeg", "-i", "pipe:0",
-                    "-ar", "48000", "-ac", "2", "-acodec", "pcm_s16be", "-f", "s16be", "pipe:1")
-                            .start();
-            startChecker("FFmpeg", ffmpeg, FFMPEG_OK);
-            WRITER.submit(() -> {
-                Future<?> future = null;
-                try (source; OutputStream out = ffmpeg.getOutputStream()) {
-                    byte[] buf = new byte[LARGE_BUFFER];
-                    int read;
-                    while ((read = source.read(buf)) != -1) {
-                        if (future != null) {
-                            future.cancel(true);
-                        }
-                        future = CHECKER.submit(() -> {
-                            TimeUnit.NANOSECONDS.sleep(READ_TIMEOUT);
-                            // no reads for a while, time to exit!
-                            LOGGER.warn("Closing ffmpeg input due to read timeout!");
-                            source.close();
-                            return null;
-                        });
-                        out.write(buf, 0, read);
-                    }
-                } finally {
-                    if (future != null) {
-                        future.cancel(true);
-                    }
-                }
-                return null;
-            });
-            return new BufferedInputStream(ffmpeg.getInputStream(), LARGE_BUFFER);
+            List<String> inputArgs = ImmutableList.<String>builder()
+                    .addAll(seekArgs(startMs))
+                    .add("-i", "pipe:0")
+                    .build();
+            List<Process> pipeline = ProcessBuilder.startPipeline(ImmutableList.of(
+                    ytdl(url), ffmpeg(inputArgs, outputArgs)));
+            pipeline.get(0).getOutputStream().close();
+            return pipeline;
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
     }
 
-    private static void startChecker(String name, Process process, BitSet okCodes) {
-        CHECKER.submit(() -> {
-            // copy in error stream so we can dump it on error
-            InputStream buffered = new BufferedInputStream(process.getErrorStream());
-            ByteArrayOutputStream cap = new ByteArrayOutputStream();
-            if (Environment.INTERNAL_STREAMS_ERROR_OUTPUT) {
-                byte[] buf = new byte[8192];
-                int read;
-                while ((read = buffered.read(buf)) != -1) {
-                    System.err.write(buf, 0, read);
-                    cap.write(buf, 0, read);
-                }
-            } else {
-                ByteStreams.copy(buffered, cap);
-            }
-            String errors = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(cap.toByteArray())).toString();
-            if (!okCodes.get(process.waitFor())) {
-                LOGGER.error("Error with " + name + " (exit code " + process.exitValue() + "): "
-                        + errors);
-            } else {
-                LOGGER.debug("{} exited cleanly.", name);
-            }
-            return null;
-        });
+    // FFmpeg downloads the resolved URL itself, no ytdl process at all
+    private static Process callFfmpeg(String streamUrl, long startMs, List<String> outputArgs) {
+        try {
+            List<String> inputArgs = ImmutableList.<String>builder()
+                    .add("-reconnect", "1", "-reconnect_streamed", "1", "-reconnect_delay_max", "5")
+                    .addAll(seekArgs(startMs))
+                    .add("-i", streamUrl)
+                    .build();
+            Process ffmpeg = ffmpeg(inputArgs, outputArgs).start();
+            ffmpeg.getOutputStream().close();
+            return ffmpeg;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
     }
 
 }
@@ -28,27 +28,31 @@ package me.kenzierocks.ourtube.guildqueue;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.CompletableFuture;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
 import discord4j.core.object.util.Snowflake;
 import org.slf4j.Logger;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.util.concurrent.Futures;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 
+import me.kenzierocks.ourtube.AsyncService;
 import me.kenzierocks.ourtube.AuditLog;
 import me.kenzierocks.ourtube.AuditLog.Action;
 import me.kenzierocks.ourtube.Dissy;
 import me.kenzierocks.ourtube.Events;
 import me.kenzierocks.ourtube.Log;
-import me.kenzierocks.ourtube.OurTube;
+import me.kenzierocks.ourtube.MemberNames;
 import me.kenzierocks.ourtube.YoutubeAccess;
 import me.kenzierocks.ourtube.lava.OurTubeAudioTrack;
-import me.kenzierocks.ourtube.lava.OurTubeItemInfo;
-import me.kenzierocks.ourtube.lava.TrackScheduler;
+import me.kenzierocks.ourtube.songprogress.SongProgress;
+import me.kenzierocks.ourtube.songprogress.SongProgressMap;
 
 public enum GuildQueue {
     INSTANCE;
@@ -57,45 +61,109 @@ public enum GuildQueue {
 
     public final Events events = new Events("GuildQueue");
 
+    /**
+     * Songs being added from one URL, a page at a time.
+     */
+    private final class Import implements Runnable {
+
+        private final String importId;
+        private final Snowflake guildId;
+        private final Snowflake userId;
+        private final String songUrl;
+        private final YoutubeAccess.SongIdPages pages;
+        private volatile boolean cancelled;
+        private volatile ImportProgress progress;
+
+        Import(String importId, Snowflake guildId, Snowflake userId, String songUrl,
+               YoutubeAccess.SongIdPages pages) {
+            this.importId = importId;
+            this.guildId = guildId;
+            this.userId = userId;
+            this.songUrl = songUrl;
+            this.pages = pages;
+        }
+
+        @Override
+        public void run() {
+            String nick = Futures.getUnchecked(MemberNames.INSTANCE.getName(guildId, userId));
+            int queued = 0;
+            ImportProgress.State state = ImportProgress.State.FAILED;
+            try {
+                // the next page isn't requested until the last is queued
+                while (!cancelled && pages.hasNext()) {
+                    List<String> songIds = pages.next();
+                    if (songIds.isEmpty()) {
+                        continue;
+                    }
+                    // loaded by the scheduler as they near the front, not here
+                    AuditLog.action(userId, "guild(%s).addSongs(%s songs)", guildId, songIds.size())
+                            .performed();
+                    Dissy.getScheduler(guildId).addSongs(userId, songIds);
+                    queued += songIds.size();
+                    report(nick, queued, ImportProgress.State.LOADING);
+                }
+                state = cancelled ? ImportProgress.State.CANCELLED : ImportProgress.State.DONE;
+                if (queued == 0 && !cancelled) {
+                    LOGGER.warn("No IDs discovered for '{}'!", songUrl);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Error adding songs from " + songUrl, e);
+            } finally {
+                imports.remove(importId);
+                report(nick, queued, state);
+            }
+        }
+
+        private void report(String nick, int queued, ImportProgress.State state) {
+            OptionalInt total = pages.getTotal();
+            progress = ImportProgress.create(importId, nick, queued,
+                    total.isPresent() ? total.getAsInt() : null, state);
+            events.post(guildId, progress);
+        }
+
+    }
+
+    private final AtomicLong nextImportId = new AtomicLong();
+    private final Map<String, Import> imports = new ConcurrentHashMap<>();
+
     public void queueSongs(Snowflake guildId, Snowflake userId, String songUrl) {
         Action queueSongs = AuditLog.action(userId, "guild(%s).queueSongs(%s)", guildId, songUrl)
                 .attempted();
-        List<String> songIds = YoutubeAccess.INSTANCE.getSongIds(songUrl);
-        List<CompletableFuture<AudioTrack>> allSongs =
-                songIds.stream()
-                        .map(id -> createTrack(id, userId))
-                        .map(cf -> cf.handle((res, err) -> {
-                            if (res != null) {
-                                return res;
-                            } else if (err != null) {
-                                LOGGER.error("Error processing song ID " + songIds, err);
-                            }
-                            return null;
-                        }))
-                        .collect(toImmutableList());
+        YoutubeAccess.SongIdPages pages = YoutubeAccess.INSTANCE.getSongIdPages(songUrl);
         queueSongs.performed();
 
-        TrackScheduler sch = Dissy.getScheduler(guildId);
-        allSongs.forEach(song -> {
-            AudioTrack track = Dissy.getCfEasily(song);
-            if (track == null) {
-                return;
-            }
-            AuditLog.action(userId, "guild(%s).addSong(%s)", guildId, AuditLog.songInfo(track.getIdentifier()))
-                    .performed();
-            sch.addTrack(userId, track);
-        });
+        String importId = Long.toString(nextImportId.incrementAndGet());
+        Import songImport = new Import(importId, guildId, userId, songUrl, pages);
+        imports.put(importId, songImport);
+        AsyncService.GENERIC.execute(songImport);
     }
 
-    private CompletableFuture<AudioTrack> createTrack(String id, Snowflake submitter) {
-        try {
-            return Dissy.loadItem("ourtube:" + OurTube.MAPPER.writeValueAsString(
-                    OurTubeItemInfo.create(id, submitter.asString())));
-        } catch (JsonProcessingException e) {
-            CompletableFuture<AudioTrack> future = new CompletableFuture<>();
-            future.completeExceptionally(e);
-            return future;
+    /**
+     * Stop adding songs from a URL. Songs already added stay queued.
+     */
+    public void cancelImport(Snowflake guildId, Snowflake userId, String importId) {
+        Action cancelImport = AuditLog.action(userId, "guild(%s).cancelImport(%s)", guildId, importId)
+                .attempted();
+
+        Import songImport = imports.get(importId);
+        if (songImport == null || !songImport.guildId.equals(guildId) || !songImport.userId.equals(userId)) {
+            cancelImport.log("canceled");
+            return;
         }
+
+        songImport.cancelled = true;
+        cancelImport.performed();
+    }
+
+    /**
+     * @return the latest progress of the guild's imports that are still going
+     */
+    public List<ImportProgress> getImports(Snowflake guildId) {
+        return imports.values().stream()
+                .filter(songImport -> songImport.guildId.equals(guildId))
+                .map(songImport -> songImport.progress)
+                .filter(Objects::nonNull)
+                .collect(toImmutableList());
     }
 
     public void skipSong(Snowflake guildId, Snowflake userId, String songId) {
@@ -118,4 +186,34 @@ public enum GuildQueue {
         Dissy.getScheduler(guildId).skipTrack();
     }
 
+    public void seekSong(Snowflake guildId, Snowflake userId, String songId, long positionMs) {
+        Action seekSong = AuditLog.action(userId, "guild(%s).seekSong(%s, %s)", guildId,
+                AuditLog.songInfo(songId), positionMs)
+                .attempted();
+
+        AudioTrack latest = Dissy.getPlayer(guildId).getPlayingTrack();
+        String songIdPlaying = OurTubeAudioTrack.cast(latest)
+            .map(BaseAudioTrack::getIdentifier)
+            .orElse(null);
+
+        if (latest == null || !Objects.equals(songId, songIdPlaying) || !latest.isSeekable()) {
+            seekSong.log("canceled");
+            return;
+        }
+
+        long duration = latest.getDuration();
+        long position = Math.max(0, positionMs);
+        if (duration != Integer.MAX_VALUE) {
+            position = Math.min(position, duration);
+        }
+        latest.setPosition(position);
+        seekSong.performed();
+
+        // don't leave clients showing the old position until the next update
+        if (duration != Integer.MAX_VALUE && duration > 0) {
+            SongProgressMap.INSTANCE.setProgress(guildId,
+                    SongProgress.create(songId, (100 * position) / (double) duration));
+        }
+    }
+
 }
@@ -0,0 +1,64 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube.guildqueue;
+
+import javax.annotation.Nullable;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * How far along adding songs from a URL is.
+ */
+@AutoValue
+public abstract class ImportProgress {
+
+    public enum State {
+        LOADING, DONE, CANCELLED, FAILED
+    }
+
+    public static ImportProgress create(String importId, String submitter, int queued,
+                                        @Nullable Integer total, State state) {
+        return new AutoValue_ImportProgress(importId, submitter, queued, total, state);
+    }
+
+    ImportProgress() {
+    }
+
+    public abstract String getImportId();
+
+    public abstract String getSubmitter();
+
+    public abstract int getQueued();
+
+    /**
+     * @return how many songs there are to queue, if it's known yet
+     */
+    @Nullable
+    public abstract Integer getTotal();
+
+    public abstract State getState();
+
+}
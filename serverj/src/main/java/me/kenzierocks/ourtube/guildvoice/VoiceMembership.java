@@ -0,0 +1,131 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube.guildvoice;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import discord4j.core.object.util.Snowflake;
+import me.kenzierocks.ourtube.Events;
+
+/**
+ * Who is in which voice channel, per guild, kept from gateway events so it can be read
+ * without asking Discord4J's store.
+ *
+ * <p>
+ * Updates are expected from one thread at a time, in gateway order. Reads can come from
+ * anywhere.
+ * </p>
+ */
+public enum VoiceMembership {
+    INSTANCE;
+
+    public final Events events = new Events("VoiceMembership");
+
+    private static final class GuildVoice {
+
+        final Map<Snowflake, Snowflake> channelByUser = new ConcurrentHashMap<>();
+        final Map<Snowflake, Set<Snowflake>> usersByChannel = new ConcurrentHashMap<>();
+
+    }
+
+    private final Map<Snowflake, GuildVoice> guilds = new ConcurrentHashMap<>();
+
+    private GuildVoice guild(Snowflake guildId) {
+        return guilds.computeIfAbsent(guildId, k -> new GuildVoice());
+    }
+
+    /**
+     * @return the users in {@code channelId}, a live view
+     */
+    public Set<Snowflake> getMembers(Snowflake guildId, Snowflake channelId) {
+        GuildVoice guild = guilds.get(guildId);
+        Set<Snowflake> members = guild == null ? null : guild.usersByChannel.get(channelId);
+        return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+    }
+
+    @Nullable
+    public Snowflake getChannel(Snowflake guildId, Snowflake userId) {
+        GuildVoice guild = guilds.get(guildId);
+        return guild == null ? null : guild.channelByUser.get(userId);
+    }
+
+    public boolean isIn(Snowflake guildId, Snowflake channelId, Snowflake userId) {
+        return channelId.equals(getChannel(guildId, userId));
+    }
+
+    /**
+     * Record a voice state update.
+     *
+     * @param channelId the user's channel now, {@code null} if they left voice
+     */
+    public void update(Snowflake guildId, Snowflake userId, @Nullable Snowflake channelId) {
+        GuildVoice guild = guild(guildId);
+        Snowflake old = channelId == null
+                ? guild.channelByUser.remove(userId)
+                : guild.channelByUser.put(userId, channelId);
+        if (Objects.equals(old, channelId)) {
+            return;
+        }
+        if (old != null) {
+            Set<Snowflake> oldMembers = guild.usersByChannel.get(old);
+            if (oldMembers != null) {
+                oldMembers.remove(userId);
+            }
+        }
+        if (channelId != null) {
+            guild.usersByChannel.computeIfAbsent(channelId, k -> ConcurrentHashMap.newKeySet()).add(userId);
+        }
+        events.post(guildId, VoiceMove.create(userId, old, channelId));
+    }
+
+    /**
+     * Replace everything known about a guild, e.g. from a full set of voice states after
+     * reconnecting. Anything that changed is posted like a normal update.
+     *
+     * @param channelByUser every user in voice, and their channel
+     */
+    public void reconcile(Snowflake guildId, Map<Snowflake, Snowflake> channelByUser) {
+        GuildVoice guild = guild(guildId);
+        for (Snowflake userId : new HashMap<>(guild.channelByUser).keySet()) {
+            if (!channelByUser.containsKey(userId)) {
+                update(guildId, userId, null);
+            }
+        }
+        channelByUser.forEach((userId, channelId) -> update(guildId, userId, channelId));
+    }
+
+    public Set<Snowflake> getKnownGuilds() {
+        return Collections.unmodifiableSet(guilds.keySet());
+    }
+
+}
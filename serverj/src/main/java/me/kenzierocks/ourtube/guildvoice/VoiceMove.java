@@ -0,0 +1,55 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube.guildvoice;
+
+import javax.annotation.Nullable;
+
+import com.google.auto.value.AutoValue;
+import discord4j.core.object.util.Snowflake;
+
+/**
+ * A user joined, left or moved between voice channels.
+ */
+@AutoValue
+public abstract class VoiceMove {
+
+    public static VoiceMove create(Snowflake userId, @Nullable Snowflake oldChannelId,
+                                   @Nullable Snowflake newChannelId) {
+        return new AutoValue_VoiceMove(userId, oldChannelId, newChannelId);
+    }
+
+    VoiceMove() {
+    }
+
+    public abstract Snowflake getUserId();
+
+    @Nullable
+    public abstract Snowflake getOldChannelId();
+
+    @Nullable
+    public abstract Snowflake getNewChannelId();
+
+}
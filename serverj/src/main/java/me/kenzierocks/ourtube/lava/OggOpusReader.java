@@ -0,0 +1,221 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube.lava;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads Opus packets out of an Ogg stream, as written by FFmpeg's {@code opus} muxer.
+ */
+class OggOpusReader {
+
+    private static final byte[] CAPTURE_PATTERN = "OggS".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OPUS_HEAD = "OpusHead".getBytes(StandardCharsets.US_ASCII);
+    private static final int PAGE_HEADER_SIZE = 27;
+    private static final int FLAG_CONTINUED = 0x01;
+    private static final int[] SILK_FRAME_SAMPLES = { 480, 960, 1920, 2880 };
+    // RFC 6716 caps a packet at 120ms of 1275 byte frames, this leaves plenty of room
+    private static final int MAX_PACKET_SIZE = 64 * 1024;
+
+    private final DataInputStream in;
+    private final byte[] pageHeader = new byte[PAGE_HEADER_SIZE];
+    private final byte[] segmentTable = new byte[255];
+    private final byte[] pageData = new byte[255 * 255];
+    // the Opus decoder only takes direct buffers
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    private int segmentCount;
+    private int segmentIndex;
+    private int dataOffset;
+    private int channelCount;
+
+    OggOpusReader(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    /**
+     * Reads the identification and comment headers.
+     *
+     * @return {@code false} if the stream doesn't start with an Opus header
+     */
+    boolean readHeaders() throws IOException {
+        ByteBuffer head = nextPacket();
+        if (head == null || head.remaining() < 19 || !startsWith(head, OPUS_HEAD)) {
+            return false;
+        }
+        channelCount = head.get(9) & 0xFF;
+        // skip the comment header
+        return nextPacket() != null;
+    }
+
+    int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * @return how many samples {@code packet} decodes to at 48kHz, from its TOC byte
+     */
+    static int packetSamples(ByteBuffer packet) {
+        if (!packet.hasRemaining()) {
+            return 0;
+        }
+        int toc = packet.get(packet.position()) & 0xFF;
+        int config = toc >> 3;
+        int frameSamples;
+        if (config < 12) {
+            // SILK: 10, 20, 40 or 60ms
+            frameSamples = SILK_FRAME_SAMPLES[config & 3];
+        } else if (config < 16) {
+            // hybrid: 10 or 20ms
+            frameSamples = (config & 1) == 0 ? 480 : 960;
+        } else {
+            // CELT: 2.5, 5, 10 or 20ms
+            frameSamples = 120 << (config & 3);
+        }
+        int frames;
+        switch (toc & 3) {
+            case 0:
+                frames = 1;
+                break;
+            case 3:
+                frames = packet.remaining() > 1 ? packet.get(packet.position() + 1) & 0x3F : 0;
+                break;
+            default:
+                frames = 2;
+                break;
+        }
+        return frameSamples * frames;
+    }
+
+    /**
+     * Skip to the page holding {@code granule}, at 48kHz from the start of the stream.
+     * Call right after {@link #readHeaders()}, which leave the reader between pages.
+     *
+     * @return the granule position reading resumes from, at or before {@code granule}
+     */
+    long skipTo(long granule) throws IOException {
+        long resumeAt = 0;
+        while (readPage()) {
+            long pageGranule = granulePosition();
+            // -1 means no packet ends on this page
+            if (pageGranule >= granule) {
+                if ((pageHeader[5] & FLAG_CONTINUED) != 0) {
+                    skipContinuedPacket();
+                }
+                return resumeAt;
+            }
+            if (pageGranule != -1) {
+                resumeAt = pageGranule;
+            }
+        }
+        return resumeAt;
+    }
+
+    private long granulePosition() {
+        long granule = 0;
+        for (int i = 13; i >= 6; i--) {
+            granule = (granule << 8) | (pageHeader[i] & 0xFF);
+        }
+        return granule;
+    }
+
+    // the rest of a packet from a page that was skipped
+    private void skipContinuedPacket() {
+        while (segmentIndex < segmentCount) {
+            int length = segmentTable[segmentIndex++] & 0xFF;
+            dataOffset += length;
+            if (length < 255) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the next packet, only valid until the next call, or {@code null} at the end
+     *     of the stream
+     */
+    @Nullable
+    ByteBuffer nextPacket() throws IOException {
+        packet.clear();
+        while (true) {
+            if (segmentIndex == segmentCount && !readPage()) {
+                if (packet.position() != 0) {
+                    throw new IOException("Stream ended in the middle of a packet");
+                }
+                return null;
+            }
+            int length = segmentTable[segmentIndex++] & 0xFF;
+            if (length > packet.remaining()) {
+                throw new IOException("Packet larger than " + MAX_PACKET_SIZE + " bytes");
+            }
+            packet.put(pageData, dataOffset, length);
+            dataOffset += length;
+            // a lacing value under 255 ends the packet
+            if (length < 255) {
+                return packet.flip();
+            }
+        }
+    }
+
+    private boolean readPage() throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return false;
+        }
+        pageHeader[0] = (byte) first;
+        in.readFully(pageHeader, 1, PAGE_HEADER_SIZE - 1);
+        for (int i = 0; i < CAPTURE_PATTERN.length; i++) {
+            if (pageHeader[i] != CAPTURE_PATTERN[i]) {
+                throw new IOException("Lost sync with the Ogg stream");
+            }
+        }
+        segmentCount = pageHeader[PAGE_HEADER_SIZE - 1] & 0xFF;
+        in.readFully(segmentTable, 0, segmentCount);
+        int dataSize = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            dataSize += segmentTable[i] & 0xFF;
+        }
+        in.readFully(pageData, 0, dataSize);
+        segmentIndex = 0;
+        dataOffset = 0;
+        return true;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(buffer.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
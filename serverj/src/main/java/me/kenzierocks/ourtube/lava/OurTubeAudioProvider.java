@@ -35,13 +35,11 @@ import me.kenzierocks.ourtube.guildvol.GuildVolume;
 import me.kenzierocks.ourtube.guildvol.SetVolume;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class OurTubeAudioProvider extends AudioProvider {
 
     private final AudioPlayer audioPlayer;
     private final MutableAudioFrame frame = new MutableAudioFrame();
-    private final AtomicInteger framesProvided = new AtomicInteger();
 
     public OurTubeAudioProvider(Snowflake guildId, AudioPlayer audioPlayer) {
         super(ByteBuffer.allocate(
@@ -58,16 +56,11 @@ public class OurTubeAudioProvider extends AudioProvider {
         audioPlayer.setVolume((int) setVolume.getVolume());
     }
 
-    public long getDurationProvidedMs() {
-        return framesProvided.get() * 20L;
-    }
-
     @Override
     public boolean provide() {
         boolean didProvide = audioPlayer.provide(frame);
         if (didProvide) {
             getBuffer().flip();
-            framesProvided.getAndIncrement();
         }
         return didProvide;
     }
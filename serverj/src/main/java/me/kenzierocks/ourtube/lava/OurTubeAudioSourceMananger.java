@@ -30,6 +30,7 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.time.Instant;
 import java.util.concurrent.ExecutionException;
 
 import com.google.common.base.Throwables;
@@ -40,9 +41,12 @@ import com.sedmelluq.discord.lavaplayer.track.AudioReference;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
 
-import me.kenzierocks.ourtube.LazyInputStream;
+import me.kenzierocks.ourtube.Environment;
+import me.kenzierocks.ourtube.FullBuffer;
 import me.kenzierocks.ourtube.OurTube;
+import me.kenzierocks.ourtube.ReadAheadBuffer;
 import me.kenzierocks.ourtube.SongData;
+import me.kenzierocks.ourtube.TranscodeAdmission;
 import me.kenzierocks.ourtube.YoutubeAccess;
 import me.kenzierocks.ourtube.YoutubeStreams;
 import me.kenzierocks.ourtube.lava.OurTubeAudioTrack.OurTubeMetadata;
@@ -75,9 +79,27 @@ public class OurTubeAudioSourceMananger implements AudioSourceManager {
             Throwables.throwIfUnchecked(t);
             throw new RuntimeException(t);
         }
-        InputStream stream = new LazyInputStream(() -> YoutubeStreams.newStream(data));
-        OurTubeMetadata meta = OurTubeMetadata.createForNow(info.getSubmitter());
-        return new OurTubeAudioTrack(createTrackInfo(data), meta, YoutubeStreams.annotateStream(data, stream));
+        TranscodeAdmission.Ticket ticket = TranscodeAdmission.INSTANCE.newTicket(info.getGuild());
+        ReadAheadBuffer.Metrics readAhead = new ReadAheadBuffer.Metrics();
+        OurTubeAudioTrack.SourceOpener stream = positionMs -> buffer(
+                data, YoutubeStreams.newStream(data, ticket, positionMs), readAhead);
+        OurTubeAudioTrack.SourceOpener opusStream = Environment.DISABLE_OPUS_PASSTHROUGH
+                ? null
+                : positionMs -> buffer(
+                        data, YoutubeStreams.newOpusStream(data, ticket, positionMs), readAhead);
+        OurTubeMetadata meta = OurTubeMetadata.create(info.getSubmitter(),
+                Instant.ofEpochMilli(info.getQueueTime()));
+        return new OurTubeAudioTrack(createTrackInfo(data), meta, YoutubeStreams.PCM_FORMAT,
+                ticket, readAhead, stream, opusStream);
+    }
+
+    private static InputStream buffer(SongData data, InputStream stream,
+                                      ReadAheadBuffer.Metrics readAhead) throws IOException {
+        if (FullBuffer.isEligible(data.getDuration())) {
+            // lets the pipeline finish, and its processes exit, long before playback does
+            return FullBuffer.wrap(stream, readAhead);
+        }
+        return ReadAheadBuffer.wrap(stream, Environment.READ_AHEAD_KB * 1024, readAhead);
     }
 
     private AudioTrackInfo createTrackInfo(SongData data) {
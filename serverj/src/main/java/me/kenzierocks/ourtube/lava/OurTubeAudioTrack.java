@@ -27,32 +27,52 @@ package me.kenzierocks.ourtube.lava;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.time.Instant;
 import java.util.Comparator;
 import java.util.Optional;
+import java.util.OptionalLong;
 
+import javax.annotation.Nullable;
+import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioFormat.Encoding;
-import javax.sound.sampled.AudioInputStream;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.Comparators;
+import com.sedmelluq.discord.lavaplayer.container.common.OpusPacketRouter;
 import com.sedmelluq.discord.lavaplayer.filter.AudioPipeline;
 import com.sedmelluq.discord.lavaplayer.filter.AudioPipelineFactory;
 import com.sedmelluq.discord.lavaplayer.filter.PcmFormat;
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
 import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.playback.AudioProcessingContext;
 import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+import org.slf4j.Logger;
+
+import me.kenzierocks.ourtube.AsyncService;
+import me.kenzierocks.ourtube.Environment;
+import me.kenzierocks.ourtube.FullBuffer;
+import me.kenzierocks.ourtube.LazyInputStream;
+import me.kenzierocks.ourtube.Log;
+import me.kenzierocks.ourtube.ProbedDurations;
+import me.kenzierocks.ourtube.ReadAheadBuffer;
+import me.kenzierocks.ourtube.SeekableStream;
+import me.kenzierocks.ourtube.TranscodeAdmission;
 
 public class OurTubeAudioTrack extends BaseAudioTrack {
 
+    private static final Logger LOGGER = Log.get();
+    private static final int OPUS_SAMPLE_RATE = 48000;
+    // how far a track played to the end may be from the expected duration, to be believed
+    private static final long DURATION_TOLERANCE_MS = 2000;
+
     public static final Comparator<AudioTrack> CMP_QUEUE_TIME = Comparator.comparing(
             track -> {
                 return OurTubeAudioTrack.metadata(track)
@@ -71,6 +91,19 @@ public class OurTubeAudioTrack extends BaseAudioTrack {
         return cast(track).map(t -> t.getMetadata());
     }
 
+    /**
+     * Opens one of the track's sources.
+     */
+    @FunctionalInterface
+    public interface SourceOpener {
+
+        /**
+         * @return the source, starting {@code positionMs} into the track
+         */
+        InputStream open(long positionMs) throws IOException;
+
+    }
+
     @AutoValue
     public abstract static class OurTubeMetadata {
 
@@ -92,32 +125,230 @@ public class OurTubeAudioTrack extends BaseAudioTrack {
     }
 
     private final OurTubeMetadata metadata;
-    private final AudioInputStream stream;
-    private final InputStream bufferedStream;
+    private final AudioFormat format;
+    private final TranscodeAdmission.Ticket ticket;
+    private final ReadAheadBuffer.Metrics readAhead;
+    private final SourceOpener sourceOpener;
+    @Nullable
+    private final SourceOpener opusOpener;
+    // replaced when a seek can't be done within them
+    private LazyInputStream source;
+    private long sourceStartMs;
+    @Nullable
+    private LazyInputStream opusSource;
+    private long opusStartMs;
+    private OggOpusReader opusReader;
+    // samples per channel handed to the player, counted from the start of the track
+    private volatile long samplePosition;
+    private volatile int sampleRate;
+    private final ByteBuffer inputBytes;
     private final ShortBuffer inputBuffer;
 
-    public OurTubeAudioTrack(AudioTrackInfo trackInfo, OurTubeMetadata metadata, AudioInputStream stream) {
+    /**
+     * @param ticket the sources' place in line for a pipeline, moved up as this track is
+     *     prefetched and played
+     * @param readAhead fill level of the sources' read-ahead buffers
+     * @param sourceOpener PCM audio in {@code format}
+     * @param opusOpener Ogg Opus audio, played without transcoding when possible
+     */
+    public OurTubeAudioTrack(AudioTrackInfo trackInfo, OurTubeMetadata metadata,
+                             AudioFormat format, TranscodeAdmission.Ticket ticket,
+                             ReadAheadBuffer.Metrics readAhead,
+                             SourceOpener sourceOpener, @Nullable SourceOpener opusOpener) {
         super(trackInfo);
-        checkArgument(stream.getFormat().getEncoding() == Encoding.PCM_SIGNED, "Need PCM encoding");
+        checkArgument(format.getEncoding() == Encoding.PCM_SIGNED, "Need PCM encoding");
+        checkArgument(format.getSampleSizeInBits() == Short.SIZE, "Need 16-bit samples");
+        checkArgument(format.isBigEndian() == (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN),
+                "Need native-endian samples");
         this.metadata = metadata;
-        this.inputBuffer = ByteBuffer.allocateDirect(2048 * stream.getFormat().getChannels())
-                .order(ByteOrder.nativeOrder())
-                .asShortBuffer();
-        this.stream = stream;
-        bufferedStream = new BufferedInputStream(stream);
+        this.format = format;
+        this.ticket = ticket;
+        this.readAhead = readAhead;
+        this.sourceOpener = sourceOpener;
+        this.opusOpener = opusOpener;
+        // only the one that gets picked is ever opened
+        this.source = new LazyInputStream(() -> sourceOpener.open(0));
+        this.opusSource = opusOpener == null ? null : new LazyInputStream(() -> opusOpener.open(0));
+        // samples arrive in native order, so the channel fills the pipeline's buffer directly
+        this.inputBytes = ByteBuffer.allocateDirect(2048 * format.getChannels())
+                .order(ByteOrder.nativeOrder());
+        this.inputBuffer = inputBytes.asShortBuffer();
     }
 
     public OurTubeMetadata getMetadata() {
         return metadata;
     }
 
+    public ReadAheadBuffer.Metrics getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Start loading the source that will likely be played, so playback can start without
+     * waiting on the download.
+     *
+     * @param passthrough if the track will likely be played without changing the volume
+     */
+    public void prefetch(boolean passthrough) {
+        LazyInputStream likely = passthrough && opusSource != null ? opusSource : source;
+        ticket.setLane(TranscodeAdmission.Lane.NEXT_UP);
+        // read-ahead and full buffers start filling themselves once created
+        boolean selfFilling = Environment.READ_AHEAD_KB > 0 || FullBuffer.isEligible(getDuration());
+        int head = selfFilling ? 0 : Environment.PREFETCH_BUFFER_KB * 1024;
+        likely.prefetch(AsyncService.GENERIC, head);
+    }
+
+    public void cancelPrefetch() {
+        ticket.setLane(TranscodeAdmission.Lane.SPECULATIVE);
+        ticket.cancelWaiting();
+        source.cancelPrefetch();
+        if (opusSource != null) {
+            opusSource.cancelPrefetch();
+        }
+    }
+
+    /**
+     * @return how far into the track decoding has got. Ahead of what's been heard by
+     *     however much the player buffers.
+     */
+    public long getSamplePositionMs() {
+        int sampleRate = this.sampleRate;
+        return sampleRate == 0 ? 0 : samplePosition * 1000 / sampleRate;
+    }
+
+    /**
+     * @return the duration from the media itself, if it's been seen, otherwise the API's
+     */
+    @Override
+    public long getDuration() {
+        OptionalLong probed = ProbedDurations.INSTANCE.get(getIdentifier());
+        return probed.isPresent() ? probed.getAsLong() : super.getDuration();
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
     @Override
     public void process(LocalAudioTrackExecutor executor) throws Exception {
+        ticket.setLane(TranscodeAdmission.Lane.PLAYING);
+        try {
+            AudioProcessingContext ctx = executor.getProcessingContext();
+            if (canPassThrough(ctx)) {
+                opusReader = new OggOpusReader(opusSource);
+                if (opusReader.readHeaders()) {
+                    processOpus(executor);
+                    return;
+                }
+                LOGGER.debug("{}: source isn't Opus, transcoding to PCM", getIdentifier());
+                // give up its pipeline slot before taking one for the PCM
+                opusSource.close();
+            }
+            processPcm(executor);
+        } finally {
+            LOGGER.debug("{}: {}", getIdentifier(), readAhead);
+            try {
+                source.close();
+            } finally {
+                if (opusSource != null) {
+                    opusSource.close();
+                }
+            }
+        }
+    }
+
+    private boolean canPassThrough(AudioProcessingContext ctx) {
+        // the router can only skip decoding when volume is untouched
+        return opusSource != null
+                && ctx.playerOptions.volumeLevel.get() == 100
+                && StandardAudioDataFormats.DISCORD_OPUS.equals(ctx.outputFormat);
+    }
+
+    private void processOpus(LocalAudioTrackExecutor executor) {
+        // passes packets straight through, or decodes them if the volume changes
+        OpusPacketRouter router = new OpusPacketRouter(executor.getProcessingContext(),
+                OPUS_SAMPLE_RATE, opusReader.getChannelCount());
+        sampleRate = OPUS_SAMPLE_RATE;
+        try {
+            executor.executeProcessingLoop(() -> {
+                while (true) {
+                    ByteBuffer packet;
+                    try {
+                        packet = opusReader.nextPacket();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    if (packet == null) {
+                        break;
+                    }
+                    samplePosition += OggOpusReader.packetSamples(packet);
+                    router.process(packet);
+                }
+                router.flush();
+                recordPlayedDuration();
+            }, timecode -> seekOpus(router, timecode));
+        } finally {
+            router.close();
+        }
+    }
+
+    private void seekOpus(OpusPacketRouter router, long timecode) throws IOException {
+        long target = Math.max(0, timecode);
+        SeekableStream seekable = target >= opusStartMs ? opusSource.peekSeekable() : null;
+        long provided;
+        if (seekable != null) {
+            // Ogg has no index, but the pages are right there to walk
+            seekable.position(0);
+            opusReader = readOpusHeaders(opusSource);
+            long granule = opusReader.skipTo((target - opusStartMs) * OPUS_SAMPLE_RATE / 1000);
+            provided = opusStartMs + granule * 1000 / OPUS_SAMPLE_RATE;
+        } else {
+            LOGGER.debug("{}: restarting Opus source at {}ms", getIdentifier(), target);
+            opusSource.close();
+            opusSource = new LazyInputStream(() -> opusOpener.open(target));
+            opusStartMs = target;
+            opusReader = readOpusHeaders(opusSource);
+            provided = target;
+        }
+        samplePosition = provided * OPUS_SAMPLE_RATE / 1000;
+        router.seekPerformed(timecode, provided);
+    }
+
+    /**
+     * Played to the end, so that's exactly how long it is. Unless it's far from what was
+     * expected, then the stream was most likely cut short.
+     */
+    private void recordPlayedDuration() {
+        long playedMs = getSamplePositionMs();
+        long expectedMs = getDuration();
+        if (expectedMs <= 0 || expectedMs >= Integer.MAX_VALUE) {
+            return;
+        }
+        long tolerance = Math.max(DURATION_TOLERANCE_MS, expectedMs / 50);
+        if (Math.abs(playedMs - expectedMs) > tolerance) {
+            LOGGER.debug("{}: ended at {}ms, expected {}ms, not recording it",
+                    getIdentifier(), playedMs, expectedMs);
+            return;
+        }
+        ProbedDurations.INSTANCE.record(getIdentifier(), playedMs);
+    }
+
+    private static OggOpusReader readOpusHeaders(InputStream source) throws IOException {
+        OggOpusReader reader = new OggOpusReader(source);
+        if (!reader.readHeaders()) {
+            throw new IOException("Opus headers missing after seeking");
+        }
+        return reader;
+    }
+
+    private void processPcm(LocalAudioTrackExecutor executor) {
         AudioProcessingContext ctx = executor.getProcessingContext();
         AudioPipeline downstream = AudioPipelineFactory.create(ctx,
                 new PcmFormat(
-                        stream.getFormat().getChannels(),
-                        (int) stream.getFormat().getSampleRate()));
+                        format.getChannels(),
+                        (int) format.getSampleRate()));
+        sampleRate = (int) format.getSampleRate();
         try {
             executor.executeProcessingLoop(() -> {
                 boolean eos = false;
@@ -128,28 +359,56 @@ public class OurTubeAudioTrack extends BaseAudioTrack {
                         throw new IllegalStateException(e);
                     }
 
+                    samplePosition += inputBuffer.remaining() / format.getChannels();
                     downstream.process(inputBuffer);
                 }
                 downstream.flush();
-            }, null);
+                recordPlayedDuration();
+            }, timecode -> seekPcm(downstream, timecode));
         } finally {
             downstream.close();
         }
     }
 
+    private void seekPcm(AudioPipeline downstream, long timecode) throws IOException {
+        long target = Math.max(0, timecode);
+        SeekableStream seekable = target >= sourceStartMs ? source.peekSeekable() : null;
+        if (seekable != null) {
+            long frames = (target - sourceStartMs) * (long) format.getFrameRate() / 1000;
+            seekable.position(frames * format.getFrameSize());
+        } else {
+            // restart the pipeline there, rather than decoding everything in between
+            LOGGER.debug("{}: restarting PCM source at {}ms", getIdentifier(), target);
+            source.close();
+            source = new LazyInputStream(() -> sourceOpener.open(target));
+            sourceStartMs = target;
+        }
+        samplePosition = target * sampleRate / 1000;
+        downstream.seekPerformed(timecode, target);
+    }
+
     private boolean fillBuffer() throws IOException {
-        inputBuffer.clear();
+        return fillSamples(source, inputBytes, inputBuffer);
+    }
+
+    /**
+     * Read {@code source} into {@code bytes} until it's full or the source ends, leaving
+     * {@code samples}, a view of {@code bytes}, limited to the whole samples read.
+     *
+     * @return if the source ended
+     */
+    static boolean fillSamples(ReadableByteChannel source, ByteBuffer bytes, ShortBuffer samples)
+            throws IOException {
+        bytes.clear();
         boolean eos = false;
-        while (inputBuffer.hasRemaining()) {
-            int hi = bufferedStream.read();
-            int lo = bufferedStream.read();
-            if (lo == -1 || hi == -1) {
+        while (bytes.hasRemaining()) {
+            if (source.read(bytes) == -1) {
                 eos = true;
                 break;
             }
-            inputBuffer.put((short) (lo | (hi << 8)));
         }
-        inputBuffer.flip();
+        // a trailing half-sample can't be played, drop it
+        samples.clear().limit(bytes.position() / Short.BYTES);
         return eos;
     }
 
@@ -35,8 +35,10 @@ public abstract class OurTubeItemInfo {
     @JsonCreator
     public static OurTubeItemInfo create(
             @JsonProperty("id") String id,
-            @JsonProperty("submitter") String submitter) {
-        return new AutoValue_OurTubeItemInfo(id, submitter);
+            @JsonProperty("submitter") String submitter,
+            @JsonProperty("guild") String guild,
+            @JsonProperty("queueTime") long queueTime) {
+        return new AutoValue_OurTubeItemInfo(id, submitter, guild, queueTime);
     }
 
     OurTubeItemInfo() {
@@ -46,4 +48,11 @@ public abstract class OurTubeItemInfo {
 
     public abstract String getSubmitter();
 
+    public abstract String getGuild();
+
+    /**
+     * @return when it was queued, in epoch milliseconds
+     */
+    public abstract long getQueueTime();
+
 }
@@ -0,0 +1,128 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube.lava;
+
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+import discord4j.core.object.util.Snowflake;
+
+/**
+ * A place in a queue. Songs are kept as just their ID until they're close to playing,
+ * then {@linkplain #materialize(Function) loaded} into a track.
+ */
+public final class QueueEntry {
+
+    /**
+     * Oldest first. Entries for other tracks, like the start up sound, go before songs.
+     */
+    public static final Comparator<QueueEntry> CMP_QUEUE_TIME = Comparator.comparing(
+            (QueueEntry entry) -> entry.songId == null ? null : entry.queueTimeMs,
+            Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    public static QueueEntry song(String songId, Snowflake submitter, long queueTimeMs) {
+        return new QueueEntry(songId, submitter, queueTimeMs, null);
+    }
+
+    /**
+     * An entry for a track that's already loaded.
+     */
+    public static QueueEntry track(Snowflake submitter, AudioTrack track) {
+        long queueTimeMs = OurTubeAudioTrack.metadata(track)
+                .map(meta -> meta.queueTime().toEpochMilli())
+                .orElse(0L);
+        String songId = OurTubeAudioTrack.cast(track).map(AudioTrack::getIdentifier).orElse(null);
+        return new QueueEntry(songId, submitter, queueTimeMs, CompletableFuture.completedFuture(track));
+    }
+
+    @Nullable
+    private final String songId;
+    private final Snowflake submitter;
+    private final long queueTimeMs;
+    @Nullable
+    private volatile CompletableFuture<AudioTrack> track;
+
+    private QueueEntry(@Nullable String songId, Snowflake submitter, long queueTimeMs,
+                       @Nullable CompletableFuture<AudioTrack> track) {
+        this.songId = songId;
+        this.submitter = submitter;
+        this.queueTimeMs = queueTimeMs;
+        this.track = track;
+    }
+
+    /**
+     * @return the YouTube ID, or {@code null} if this isn't a song
+     */
+    @Nullable
+    public String getSongId() {
+        return songId;
+    }
+
+    public Snowflake getSubmitter() {
+        return submitter;
+    }
+
+    public long getQueueTimeMs() {
+        return queueTimeMs;
+    }
+
+    /**
+     * Start loading the track, if it isn't already.
+     *
+     * @return the track, when loaded
+     */
+    CompletableFuture<AudioTrack> materialize(Function<QueueEntry, CompletableFuture<AudioTrack>> loader) {
+        CompletableFuture<AudioTrack> track = this.track;
+        if (track == null) {
+            track = loader.apply(this);
+            this.track = track;
+        }
+        return track;
+    }
+
+    /**
+     * @return the track, if it's been loaded
+     */
+    @Nullable
+    public AudioTrack getLoadedTrack() {
+        CompletableFuture<AudioTrack> track = this.track;
+        if (track == null || !track.isDone() || track.isCompletedExceptionally()) {
+            return null;
+        }
+        return track.join();
+    }
+
+    boolean failedToLoad() {
+        CompletableFuture<AudioTrack> track = this.track;
+        return track != null && track.isCompletedExceptionally();
+    }
+
+}
@@ -27,20 +27,37 @@ package me.kenzierocks.ourtube.lava;
 
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Optional;
-import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import javax.annotation.Nullable;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
 import discord4j.core.object.util.Snowflake;
-import discord4j.voice.VoiceConnection;
 import org.slf4j.Logger;
 
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
@@ -51,19 +68,60 @@ import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
 import me.kenzierocks.ourtube.AsyncService;
 import me.kenzierocks.ourtube.AudioUpdatesTask;
 import me.kenzierocks.ourtube.Dissy;
+import me.kenzierocks.ourtube.Environment;
 import me.kenzierocks.ourtube.Log;
+import me.kenzierocks.ourtube.MemberNames;
+import me.kenzierocks.ourtube.OurTube;
 import me.kenzierocks.ourtube.guildqueue.GuildQueue;
 import me.kenzierocks.ourtube.guildqueue.PopSong;
 import me.kenzierocks.ourtube.guildqueue.PushSong;
+import me.kenzierocks.ourtube.guildqueue.PushSongBatch;
 
 public class TrackScheduler extends AudioEventAdapter {
 
     private static final Logger LOGGER = Log.get();
 
+    // how many of the next entries to have loaded into tracks
+    private static final int MATERIALIZE_AHEAD = 3;
+
+    /**
+     * The first entry of a listener's queue, as it was when indexed.
+     */
+    private static final class QueueHead {
+
+        private static final Comparator<QueueHead> ORDER = Comparator
+                .comparing((QueueHead head) -> head.entry, QueueEntry.CMP_QUEUE_TIME)
+                .thenComparing(head -> head.userId);
+
+        final Snowflake userId;
+        final QueueEntry entry;
+
+        QueueHead(Snowflake userId, QueueEntry entry) {
+            this.userId = userId;
+            this.entry = entry;
+        }
+
+    }
+
     private final Snowflake guildId;
     private final AudioPlayer player;
-    private final ConcurrentHashMap<Snowflake, BlockingQueue<AudioTrack>> queue;
-    private final Lock accessLock = new ReentrantLock();
+    private final ConcurrentHashMap<Snowflake, BlockingQueue<QueueEntry>> queue;
+    // runs every change to the scheduler, one at a time, in submission order
+    private final Executor mailbox = MoreExecutors.newSequentialExecutor(AsyncService.GENERIC);
+    // the rest are only touched from the mailbox. queue may be read from anywhere
+    // who's in the voice channel with us, only their queues are played from
+    private final Set<Snowflake> listeners = new HashSet<>();
+    // non-empty queues of listeners, oldest head first
+    private final NavigableSet<QueueHead> nextHeads = new TreeSet<>(QueueHead.ORDER);
+    private final Map<Snowflake, QueueHead> indexedHeads = new HashMap<>();
+    // the next track, loading ahead of time
+    @Nullable
+    private OurTubeAudioTrack prefetched;
+    // the playing track, while it's close enough to the end to have the next one prefetched
+    @Nullable
+    private AudioTrack nearEndTrack;
+    // the last queue event to be posted. each waits on the one before, to stay in order
+    private ListenableFuture<?> lastQueueEvent = Futures.immediateFuture(null);
 
     public TrackScheduler(Snowflake guildId, AudioPlayer player) {
         this.guildId = guildId;
@@ -72,125 +130,344 @@ public class TrackScheduler extends AudioEventAdapter {
         this.queue = new ConcurrentHashMap<>();
     }
 
-    public Stream<AudioTrack> allTracksStream() {
+    /**
+     * Run {@code action} in the mailbox.
+     */
+    private <T> ListenableFuture<T> submit(String name, Callable<T> action) {
+        ListenableFuture<T> future = Futures.submit(action, mailbox);
+        Futures.addCallback(future, new FutureCallback<T>() {
+
+            @Override
+            public void onSuccess(T result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOGGER.error("Error in " + name + " for guild " + guildId.asString(), t);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private ListenableFuture<Void> submit(String name, Runnable action) {
+        return submit(name, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public Stream<QueueEntry> allEntriesStream() {
         return queue.values().stream()
                 .flatMap(Collection::stream)
-                .sorted(OurTubeAudioTrack.CMP_QUEUE_TIME);
+                .sorted(QueueEntry.CMP_QUEUE_TIME);
     }
 
-    public BlockingQueue<AudioTrack> getQueue(Snowflake userId) {
+    private BlockingQueue<QueueEntry> getQueue(Snowflake userId) {
         return queue.computeIfAbsent(userId, uid -> new LinkedBlockingDeque<>());
     }
 
-    private Optional<BlockingQueue<AudioTrack>> peekNextQueue() {
-        var connected = Dissy.getConnection(guildId);
-        if (connected == null) {
-            return Optional.empty();
+    /**
+     * Bring {@code userId}'s entry in the index up to date with their queue and presence.
+     */
+    private void reindex(Snowflake userId) {
+        QueueHead old = indexedHeads.remove(userId);
+        if (old != null) {
+            nextHeads.remove(old);
+        }
+        if (!listeners.contains(userId)) {
+            return;
+        }
+        BlockingQueue<QueueEntry> userQueue = queue.get(userId);
+        QueueEntry head = userQueue == null ? null : userQueue.peek();
+        if (head != null) {
+            QueueHead entry = new QueueHead(userId, head);
+            nextHeads.add(entry);
+            indexedHeads.put(userId, entry);
         }
-        return Optional.ofNullable(connected.channel.getVoiceStates()
-                .map(user -> getQueue(user.getUserId()))
-                .filter(queue -> !queue.isEmpty())
-                .sort(Comparator.comparing(BlockingQueue::peek, OurTubeAudioTrack.CMP_QUEUE_TIME))
-                .blockFirst());
     }
 
-    @Nullable
-    private AudioTrack pollNextTrack() {
-        accessLock.lock();
-        try {
-            return peekNextQueue().map(Queue::poll).orElse(null);
-        } finally {
-            accessLock.unlock();
-        }
+    /**
+     * Replace who's listening, e.g. after joining a channel. Everyone else's queue is held
+     * until they join.
+     */
+    public ListenableFuture<Void> setListeners(Set<Snowflake> userIds) {
+        Set<Snowflake> copy = ImmutableSet.copyOf(userIds);
+        return submit("setListeners", () -> {
+            listeners.clear();
+            listeners.addAll(copy);
+            nextHeads.clear();
+            indexedHeads.clear();
+            for (Snowflake userId : listeners) {
+                reindex(userId);
+            }
+            materializeAhead();
+        });
+    }
+
+    public ListenableFuture<Void> listenerJoined(Snowflake userId) {
+        return submit("listenerJoined", () -> {
+            if (listeners.add(userId)) {
+                reindex(userId);
+                materializeAhead();
+            }
+        });
+    }
+
+    public ListenableFuture<Void> listenerLeft(Snowflake userId) {
+        return submit("listenerLeft", () -> {
+            if (listeners.remove(userId)) {
+                reindex(userId);
+                materializeAhead();
+            }
+        });
     }
 
+    /**
+     * @return the next track, if it's loaded
+     */
     @Nullable
     private AudioTrack peekNextTrack() {
-        accessLock.lock();
-        try {
-            return peekNextQueue().map(Queue::peek).orElse(null);
-        } finally {
-            accessLock.unlock();
-        }
+        return nextHeads.isEmpty() ? null : nextHeads.first().entry.getLoadedTrack();
     }
 
-    public Lock getAccessLock() {
-        return accessLock;
+    /**
+     * Start loading the entries that will play next, and keep the prefetch on the first.
+     */
+    private void materializeAhead() {
+        Iterator<QueueHead> heads = nextHeads.iterator();
+        for (int i = 0; i < MATERIALIZE_AHEAD && heads.hasNext(); i++) {
+            QueueEntry entry = heads.next().entry;
+            if (entry.getLoadedTrack() == null && !entry.failedToLoad()) {
+                entry.materialize(this::load).whenComplete((track, error) ->
+                        // it may be the one we're waiting on
+                        submit("materialized", () -> doNextTrack(true)));
+            }
+        }
+        // the head may have changed, or finished loading, since the last prefetch
+        if (nearEndTrack != null) {
+            prefetchNext(nearEndTrack);
+        }
     }
 
-    public void addTrack(Snowflake userId, AudioTrack track) {
-        accessLock.lock();
+    private CompletableFuture<AudioTrack> load(QueueEntry entry) {
         try {
-            LOGGER.debug("Queued track " + track.getIdentifier());
-            getQueue(userId).add(track);
-            OurTubeAudioTrack.cast(track)
-                    .map(BaseAudioTrack::getIdentifier)
-                    .ifPresent(songId -> {
-                        String nick = Dissy.getNameForUserInGuild(guildId, userId);
-                        GuildQueue.INSTANCE.events.post(guildId, PushSong.create(songId, nick));
-                    });
-            nextTrack(true);
-        } finally {
-            accessLock.unlock();
+            return Dissy.loadItem("ourtube:" + OurTube.MAPPER.writeValueAsString(
+                    OurTubeItemInfo.create(entry.getSongId(), entry.getSubmitter().asString(),
+                            guildId.asString(), entry.getQueueTimeMs())));
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
         }
     }
 
-    public void nextTrack(boolean noInterrupt) {
-        accessLock.lock();
-        try {
-            Optional<BlockingQueue<AudioTrack>> queue = peekNextQueue();
-            AudioTrack nextTrack = queue.map(Queue::peek).orElse(null);
-            if (nextTrack != null) {
-                LOGGER.debug("Started track " + nextTrack.getIdentifier());
-            } else {
-                LOGGER.debug("Stopping current track, no replacement.");
+    public ListenableFuture<Void> addTrack(Snowflake userId, AudioTrack track) {
+        return submit("addTrack", () -> doAddTrack(userId, QueueEntry.track(userId, track)));
+    }
+
+    /**
+     * Queue {@code track}, if {@code condition} holds for everything queued so far.
+     *
+     * @return if it was queued
+     */
+    public ListenableFuture<Boolean> addTrackIf(Predicate<Stream<QueueEntry>> condition,
+                                                Snowflake userId, AudioTrack track) {
+        return submit("addTrackIf", () -> {
+            if (!condition.test(allEntriesStream())) {
+                return false;
             }
-            if (player.startTrack(nextTrack, noInterrupt)) {
-                queue.ifPresent(Queue::poll);
+            doAddTrack(userId, QueueEntry.track(userId, track));
+            return true;
+        });
+    }
+
+    /**
+     * Queue all of {@code songIds} at once, in order, with a single event for clients.
+     * They're loaded as they near the front of the queue.
+     */
+    public ListenableFuture<Void> addSongs(Snowflake userId, List<String> songIds) {
+        List<String> copy = ImmutableList.copyOf(songIds);
+        return submit("addSongs", () -> doAddSongs(userId, copy));
+    }
+
+    private void doAddSongs(Snowflake userId, List<String> songIds) {
+        if (songIds.isEmpty()) {
+            return;
+        }
+        LOGGER.debug("Queued " + songIds.size() + " songs");
+        long queueTimeMs = System.currentTimeMillis();
+        BlockingQueue<QueueEntry> userQueue = getQueue(userId);
+        boolean wasEmpty = userQueue.isEmpty();
+        for (String songId : songIds) {
+            userQueue.add(QueueEntry.song(songId, userId, queueTimeMs));
+        }
+        if (wasEmpty) {
+            reindex(userId);
+        }
+        ListenableFuture<String> nick = MemberNames.INSTANCE.getName(guildId, userId);
+        postQueueEvent(nick, () -> PushSongBatch.create(songIds, Futures.getUnchecked(nick)));
+        doNextTrack(true);
+    }
+
+    private void doAddTrack(Snowflake userId, QueueEntry entry) {
+        BlockingQueue<QueueEntry> userQueue = getQueue(userId);
+        userQueue.add(entry);
+        if (userQueue.peek() == entry) {
+            reindex(userId);
+        }
+        String songId = entry.getSongId();
+        if (songId != null) {
+            LOGGER.debug("Queued track " + songId);
+            ListenableFuture<String> nick = MemberNames.INSTANCE.getName(guildId, userId);
+            postQueueEvent(nick, () -> PushSong.create(songId, Futures.getUnchecked(nick)));
+        }
+        doNextTrack(true);
+    }
+
+    /**
+     * Post a queue event once {@code ready} completes, after those posted before it.
+     */
+    private void postQueueEvent(ListenableFuture<?> ready, Supplier<Object> event) {
+        lastQueueEvent = Futures.whenAllComplete(lastQueueEvent, ready).run(
+                () -> GuildQueue.INSTANCE.events.post(guildId, event.get()),
+                MoreExecutors.directExecutor());
+    }
+
+    public ListenableFuture<Void> nextTrack(boolean noInterrupt) {
+        return submit("nextTrack", () -> doNextTrack(noInterrupt));
+    }
+
+    private void doNextTrack(boolean noInterrupt) {
+        QueueHead next = nextHeads.isEmpty() ? null : nextHeads.first();
+        // drop songs that couldn't be loaded, they'll never play
+        while (next != null && next.entry.failedToLoad()) {
+            String songId = next.entry.getSongId();
+            LOGGER.warn("Dropping song " + songId + ", it couldn't be loaded");
+            queue.get(next.userId).poll();
+            reindex(next.userId);
+            postQueueEvent(Futures.immediateFuture(null), () -> PopSong.create(songId));
+            next = nextHeads.isEmpty() ? null : nextHeads.first();
+        }
+        materializeAhead();
+        AudioTrack nextTrack = next == null ? null : next.entry.getLoadedTrack();
+        if (next != null && nextTrack == null) {
+            // still loading, this runs again when it's done
+            if (!noInterrupt) {
+                LOGGER.debug("Stopping current track, replacement still loading.");
+                player.stopTrack();
             }
-        } finally {
-            accessLock.unlock();
+            return;
+        }
+        if (nextTrack != null) {
+            LOGGER.debug("Started track " + nextTrack.getIdentifier());
+        } else {
+            LOGGER.debug("Stopping current track, no replacement.");
+        }
+        if (player.startTrack(nextTrack, noInterrupt) && next != null) {
+            queue.get(next.userId).poll();
+            reindex(next.userId);
+            materializeAhead();
         }
     }
 
-    public void skipTrack() {
-        accessLock.lock();
-        try {
-            nextTrack(false);
-        } finally {
-            accessLock.unlock();
+    public ListenableFuture<Void> skipTrack() {
+        return nextTrack(false);
+    }
+
+    private void cancelPrefetch(AudioTrack current) {
+        if (player.getPlayingTrack() != current || prefetched == null) {
+            return;
+        }
+        LOGGER.debug("Seeked away from the end, cancelling prefetch of " + prefetched.getIdentifier());
+        prefetched.cancelPrefetch();
+        prefetched = null;
+    }
+
+    private void enterNearEnd(AudioTrack current) {
+        if (player.getPlayingTrack() != current) {
+            return;
+        }
+        nearEndTrack = current;
+        prefetchNext(current);
+    }
+
+    private void prefetchNext(AudioTrack current) {
+        if (player.getPlayingTrack() != current) {
+            return;
+        }
+        OurTubeAudioTrack next = OurTubeAudioTrack.cast(peekNextTrack()).orElse(null);
+        if (next == prefetched) {
+            return;
+        }
+        // the queue changed since the last prefetch
+        if (prefetched != null) {
+            prefetched.cancelPrefetch();
+        }
+        prefetched = next;
+        if (next != null) {
+            LOGGER.debug("Prefetching track " + next.getIdentifier());
+            next.prefetch(player.getVolume() == 100);
         }
     }
 
     @Override
     public void onTrackStart(AudioPlayer player, AudioTrack track) {
-        OurTubeAudioTrack.cast(track)
-                .map(BaseAudioTrack::getIdentifier)
-                .ifPresent(songId -> {
-                    AsyncService.GENERIC.execute(new AudioUpdatesTask(
-                            player,
-                            Dissy.getProvider(guildId),
-                            track,
-                            guildId,
-                            songId));
-                });
+        submit("onTrackStart", () -> {
+            nearEndTrack = null;
+            if (prefetched != null && prefetched != track) {
+                LOGGER.debug("Cancelling prefetch of " + prefetched.getIdentifier());
+                prefetched.cancelPrefetch();
+            }
+            prefetched = null;
+        });
+        long prefetchLead = TimeUnit.SECONDS.toMillis(Environment.PREFETCH_SECONDS);
+        Optional<String> ourTubeSong = OurTubeAudioTrack.cast(track).map(BaseAudioTrack::getIdentifier);
+        if (ourTubeSong.isPresent()) {
+            // follows the track's position, through seeks and pauses
+            AsyncService.GENERIC.execute(new AudioUpdatesTask(
+                    player,
+                    track,
+                    guildId,
+                    ourTubeSong.get(),
+                    prefetchLead,
+                    prefetchLead > 0 ? new AudioUpdatesTask.NearEndListener() {
+
+                        @Override
+                        public void nearEnd() {
+                            submit("prefetchNext", () -> enterNearEnd(track));
+                        }
+
+                        @Override
+                        public void leftNearEnd() {
+                            submit("cancelPrefetch", () -> {
+                                if (nearEndTrack == track) {
+                                    nearEndTrack = null;
+                                }
+                                cancelPrefetch(track);
+                            });
+                        }
+                    } : null));
+            return;
+        }
+        // other tracks are short sounds that can't seek
+        long duration = track.getDuration();
+        if (prefetchLead > 0 && duration != Integer.MAX_VALUE) {
+            AsyncService.GENERIC.schedule(() -> submit("prefetchNext", () -> enterNearEnd(track)),
+                    Math.max(0, duration - prefetchLead), TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
-        accessLock.lock();
-        try {
+        submit("onTrackEnd", () -> {
             OurTubeAudioTrack.cast(track)
                     .map(otat -> otat.getIdentifier())
                     .ifPresent(songId -> {
-                        GuildQueue.INSTANCE.events.post(guildId, PopSong.create(songId));
+                        postQueueEvent(Futures.immediateFuture(null), () -> PopSong.create(songId));
                     });
             if (endReason.mayStartNext) {
-                nextTrack(false);
+                // something queued ahead of this may have started a track already
+                doNextTrack(true);
             }
-        } finally {
-            accessLock.unlock();
-        }
+        });
     }
 
 }
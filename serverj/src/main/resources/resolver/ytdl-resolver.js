@@ -0,0 +1,62 @@
+// Long-lived stream URL resolver, so each song doesn't pay for a Node.js start.
+//
+// Reads one request per line on stdin, and answers each with one line on stdout.
+// Requests are handled concurrently, so answers can come back in any order:
+//   <id> resolve <video url>  ->  <id> ok <stream url>  |  <id> error <message>
+//   <id> ping                 ->  <id> pong
+const path = require("path");
+const readline = require("readline");
+const childProcess = require("child_process");
+
+function loadYtdl() {
+    try {
+        return require("ytdl-core");
+    } catch (e) {
+        // not next to us, use the copy installed with the ytdl CLI
+        const globalRoot = childProcess.execSync("npm root -g").toString().trim();
+        try {
+            return require(path.join(globalRoot, "ytdl", "node_modules", "ytdl-core"));
+        } catch (e2) {
+            return require(path.join(globalRoot, "ytdl-core"));
+        }
+    }
+}
+
+const ytdl = loadYtdl();
+
+function respond(id, kind, value) {
+    const line = value === undefined ? `${id} ${kind}` : `${id} ${kind} ${value}`;
+    process.stdout.write(line.replace(/[\r\n]+/g, " ") + "\n");
+}
+
+async function resolve(url) {
+    const info = await ytdl.getInfo(url);
+    let format;
+    try {
+        format = ytdl.chooseFormat(info.formats, {quality: "highestaudio", filter: "audioonly"});
+    } catch (e) {
+        // same as the CLI's --filter audio
+        format = ytdl.chooseFormat(info.formats, {quality: "highestaudio", filter: "audio"});
+    }
+    return format.url;
+}
+
+readline.createInterface({input: process.stdin}).on("line", line => {
+    const [id, command, arg] = line.trim().split(" ");
+    if (!id) {
+        return;
+    }
+    switch (command) {
+        case "ping":
+            respond(id, "pong");
+            break;
+        case "resolve":
+            resolve(arg).then(
+                url => respond(id, "ok", url),
+                err => respond(id, "error", (err && err.message) || String(err))
+            );
+            break;
+        default:
+            respond(id, "error", `unknown command ${command}`);
+    }
+}).on("close", () => process.exit(0));
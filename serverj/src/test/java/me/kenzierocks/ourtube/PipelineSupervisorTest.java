@@ -0,0 +1,172 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class PipelineSupervisorTest {
+
+    private static final BitSet OK = new BitSet();
+    static {
+        OK.set(0);
+    }
+
+    private static final String OUTPUT = "seq 1 200000";
+    // where the attempts resume from are rounded down to this, like whole milliseconds
+    private static final long GRANULE = 1000;
+    private static final long BREAKER_OPEN_MS = 200;
+
+    @BeforeClass
+    public static void shortenTimings() {
+        PipelineSupervisor.INSTANCE.setTimings(10, TimeUnit.MILLISECONDS.toNanos(BREAKER_OPEN_MS));
+    }
+
+    private static PipelineSupervisor.Attempt attempt(String name, String script, long outputOffset)
+            throws IOException {
+        Process process = new ProcessBuilder("sh", "-c", script).start();
+        process.getOutputStream().close();
+        return new PipelineSupervisor.Attempt(process.getInputStream(), outputOffset,
+                ImmutableList.of(process),
+                ImmutableList.of(ProcessErrorDrain.INSTANCE.watch(name, process, OK)),
+                () -> true);
+    }
+
+    private static byte[] expected() throws IOException {
+        return new ProcessBuilder("sh", "-c", OUTPUT).start().getInputStream().readAllBytes();
+    }
+
+    @Test
+    public void resumesFromWhereItFailed() throws IOException {
+        List<Long> offsets = new CopyOnWriteArrayList<>();
+        PipelineSupervisor.SupervisedStream stream = PipelineSupervisor.INSTANCE.open("resumable", true, offset -> {
+            int attempt = offsets.size();
+            offsets.add(offset);
+            long start = offset / GRANULE * GRANULE;
+            String script = OUTPUT + " | tail -c +" + (start + 1);
+            if (attempt < 2) {
+                // dies part way, with an error worth retrying
+                script += " | head -c 300001; echo 'Error: read ECONNRESET' >&2; exit 1";
+            }
+            return attempt("resumable-" + attempt, script, start);
+        });
+
+        assertArrayEquals(expected(), stream.readAllBytes());
+        assertTrue(stream.completedNormally());
+        // the second attempt starts a byte early, at 300000
+        assertEquals(ImmutableList.of(0L, 300001L, 600001L), offsets);
+    }
+
+    @Test
+    public void permanentFailureIsNotRestarted() throws IOException {
+        List<Long> offsets = new CopyOnWriteArrayList<>();
+        PipelineSupervisor.SupervisedStream stream = PipelineSupervisor.INSTANCE.open("permanent", true, offset -> {
+            offsets.add(offset);
+            return attempt("permanent", "echo 'ERROR: Video unavailable' >&2; exit 1", 0);
+        });
+
+        try {
+            stream.readAllBytes();
+            fail("Expected the stream to fail");
+        } catch (IOException expected) {
+        }
+        assertFalse(stream.completedNormally());
+        assertEquals(ImmutableList.of(0L), offsets);
+    }
+
+    @Test
+    public void unresumableOnlyRestartsBeforeOutput() throws IOException {
+        List<Long> offsets = new CopyOnWriteArrayList<>();
+        PipelineSupervisor.SupervisedStream stream = PipelineSupervisor.INSTANCE.open("unresumable", false, offset -> {
+            offsets.add(offset);
+            return attempt("unresumable", OUTPUT + " | head -c 1000; echo 'Error: read ECONNRESET' >&2; exit 1", 0);
+        });
+
+        byte[] buffer = new byte[100_000];
+        int read = 0;
+        try {
+            int count;
+            while ((count = stream.read(buffer, read, buffer.length - read)) != -1) {
+                read += count;
+            }
+            fail("Expected the stream to fail");
+        } catch (IOException expected) {
+        }
+        assertEquals(1000, read);
+        assertEquals(ImmutableList.of(0L), offsets);
+    }
+
+    @Test
+    public void breakerOpensOnRepeatedFailuresAndClosesOnSuccess() throws Exception {
+        PipelineSupervisor supervisor = PipelineSupervisor.INSTANCE;
+        PipelineSupervisor.PipelineStarter failing = offset ->
+                attempt("failing", "echo 'Error: read ECONNRESET' >&2; exit 1", 0);
+        // each stream fails a few times before giving up
+        for (int i = 0; i < 3 && !supervisor.isBreakerOpen(); i++) {
+            try (PipelineSupervisor.SupervisedStream stream = supervisor.open("failing", true, failing)) {
+                stream.readAllBytes();
+                fail("Expected the stream to fail");
+            } catch (IOException expected) {
+            }
+        }
+        assertTrue(supervisor.isBreakerOpen());
+
+        List<Long> offsets = new CopyOnWriteArrayList<>();
+        PipelineSupervisor.PipelineStarter working = offset -> {
+            offsets.add(offset);
+            return attempt("working", OUTPUT, 0);
+        };
+        try {
+            supervisor.open("denied", true, working);
+            fail("Expected the breaker to refuse a new pipeline");
+        } catch (IOException expected) {
+        }
+        assertTrue(offsets.isEmpty());
+
+        // half-open: the next one is let through, and closes the breaker by delivering
+        TimeUnit.MILLISECONDS.sleep(BREAKER_OPEN_MS + 50);
+        try (PipelineSupervisor.SupervisedStream stream = supervisor.open("probe", true, working)) {
+            assertArrayEquals(expected(), stream.readAllBytes());
+        }
+        assertFalse(supervisor.isBreakerOpen());
+        assertEquals(ImmutableList.of(0L), offsets);
+    }
+
+}
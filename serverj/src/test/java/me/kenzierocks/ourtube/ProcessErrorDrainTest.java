@@ -0,0 +1,127 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ProcessErrorDrainTest {
+
+    private static final BitSet OK = new BitSet();
+    static {
+        OK.set(0);
+    }
+
+    private static Process sh(String script) throws IOException {
+        Process process = new ProcessBuilder("sh", "-c", script).start();
+        process.getOutputStream().close();
+        process.getInputStream().close();
+        return process;
+    }
+
+    private static ProcessErrorDrain.Exit await(CompletableFuture<ProcessErrorDrain.Exit> exit) throws Exception {
+        return exit.get(30, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void cleanExit() throws Exception {
+        ProcessErrorDrain.Exit exit = await(ProcessErrorDrain.INSTANCE.watch("clean", sh("echo fine >&2"), OK));
+
+        assertEquals("clean", exit.getName());
+        assertEquals(0, exit.getExitCode());
+        assertTrue(exit.isOk());
+        assertEquals("fine\n", exit.getErrorTail());
+    }
+
+    @Test
+    public void unexpectedExitKeepsErrors() throws Exception {
+        ProcessErrorDrain.Exit exit = await(ProcessErrorDrain.INSTANCE.watch("broken",
+                sh("echo starting >&2; echo 403 Forbidden >&2; exit 3"), OK));
+
+        assertEquals(3, exit.getExitCode());
+        assertFalse(exit.isOk());
+        assertEquals("starting\n403 Forbidden\n", exit.getErrorTail());
+    }
+
+    @Test
+    public void keepsOnlyTheTail() throws Exception {
+        ProcessErrorDrain.Exit exit = await(ProcessErrorDrain.INSTANCE.watch("chatty",
+                sh("head -c 20000 /dev/zero | tr '\\0' a >&2; echo END >&2"), OK));
+
+        String tail = exit.getErrorTail();
+        assertTrue(tail.startsWith("...aaa"));
+        assertTrue(tail.endsWith("aaaEND\n"));
+        assertEquals(3 + 8 * 1024, tail.length());
+    }
+
+    @Test
+    public void scansTheHead() throws Exception {
+        AtomicReference<String> seen = new AtomicReference<>();
+        ProcessErrorDrain.Exit exit = await(ProcessErrorDrain.INSTANCE.watch("scanned",
+                sh("echo 'Input #0' >&2; sleep 0.3; echo '  Duration: 00:03:25.12' >&2; exit 0"), OK,
+                errors -> {
+                    if (errors.contains("Duration:")) {
+                        seen.set(errors);
+                        return true;
+                    }
+                    return false;
+                }));
+
+        assertTrue(exit.isOk());
+        assertTrue(seen.get(), seen.get().contains("Input #0\n  Duration: 00:03:25.12"));
+    }
+
+    @Test
+    public void manyProcessesShareOneThread() throws Exception {
+        List<CompletableFuture<ProcessErrorDrain.Exit>> exits = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            exits.add(ProcessErrorDrain.INSTANCE.watch("load-" + i,
+                    sh("echo pipeline " + i + " >&2; sleep 0.5; exit " + (i % 2)), OK));
+        }
+
+        long drainThreads = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("process-stderr-"))
+                .count();
+        assertEquals(1, drainThreads);
+        for (int i = 0; i < exits.size(); i++) {
+            ProcessErrorDrain.Exit exit = await(exits.get(i));
+            assertEquals(i % 2 == 0, exit.isOk());
+            assertEquals("pipeline " + i + "\n", exit.getErrorTail());
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class RangeDownloaderTest {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private final byte[] media = new byte[3 * 1024 * 1024 + 12345];
+    // by range start, how many requests have been made for it
+    private final Map<Long, AtomicInteger> requests = new ConcurrentHashMap<>();
+    // by range start, a status to fail the request with instead, or null
+    private volatile Function<Long, Integer> failure = start -> null;
+    private volatile boolean ranges = true;
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void startServer() throws IOException {
+        new Random(42).nextBytes(media);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/media", this::serve);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/media";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            Matcher matcher = range == null ? null : RANGE.matcher(range);
+            if (!ranges || matcher == null || !matcher.matches()) {
+                send(exchange, 200, 0, media.length);
+                return;
+            }
+            long start = Long.parseLong(matcher.group(1));
+            long end = Math.min(Long.parseLong(matcher.group(2)), media.length - 1);
+            requests.computeIfAbsent(start, k -> new AtomicInteger()).incrementAndGet();
+            Integer status = failure.apply(start);
+            if (status != null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + media.length);
+            send(exchange, 206, (int) start, (int) (end - start + 1));
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, int offset, int length) throws IOException {
+        exchange.sendResponseHeaders(status, length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(media, offset, length);
+        }
+    }
+
+    private int attempts(long start) {
+        AtomicInteger count = requests.get(start);
+        return count == null ? 0 : count.get();
+    }
+
+    @Test
+    public void reassemblesChunksInOrder() throws IOException {
+        try (InputStream download = RangeDownloader.open(url, 3, () -> fail("Not forbidden"))) {
+            assertArrayEquals(media, download.readAllBytes());
+        }
+        // four chunks, each requested once
+        assertEquals(4, requests.size());
+        requests.values().forEach(count -> assertEquals(1, count.get()));
+    }
+
+    @Test
+    public void retriesFailedChunk() throws IOException {
+        long flaky = 2 * 1024 * 1024;
+        failure = start -> start == flaky && attempts(start) < 3 ? 503 : null;
+
+        try (InputStream download = RangeDownloader.open(url, 2, () -> fail("Not forbidden"))) {
+            assertArrayEquals(media, download.readAllBytes());
+        }
+        assertEquals(3, attempts(flaky));
+    }
+
+    @Test
+    public void givesUpAfterRepeatedFailures() throws IOException {
+        long broken = 1024 * 1024;
+        failure = start -> start == broken ? 500 : null;
+
+        try (InputStream download = RangeDownloader.open(url, 2, () -> fail("Not forbidden"))) {
+            download.readAllBytes();
+            fail("Expected the download to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("HTTP 500"));
+        }
+        assertEquals(3, attempts(broken));
+    }
+
+    @Test
+    public void forbiddenChunkIsNotRetried() throws IOException {
+        long expired = 1024 * 1024;
+        failure = start -> start == expired ? 403 : null;
+        AtomicInteger forbidden = new AtomicInteger();
+
+        try (InputStream download = RangeDownloader.open(url, 2, forbidden::incrementAndGet)) {
+            download.readAllBytes();
+            fail("Expected the download to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("403"));
+        }
+        assertEquals(1, forbidden.get());
+        assertEquals(1, attempts(expired));
+    }
+
+    @Test
+    public void forbiddenFirstRequest() {
+        failure = start -> 403;
+        AtomicInteger forbidden = new AtomicInteger();
+
+        try {
+            RangeDownloader.open(url, 2, forbidden::incrementAndGet).close();
+            fail("Expected the download to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("HTTP 403"));
+        }
+        assertEquals(1, forbidden.get());
+    }
+
+    @Test
+    public void plainDownloadWithoutRanges() throws IOException {
+        ranges = false;
+
+        try (InputStream download = RangeDownloader.open(url, 4, () -> fail("Not forbidden"))) {
+            assertArrayEquals(media, download.readAllBytes());
+        }
+        assertTrue(requests.isEmpty());
+    }
+
+}
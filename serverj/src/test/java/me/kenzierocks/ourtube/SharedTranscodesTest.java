@@ -0,0 +1,134 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class SharedTranscodesTest {
+
+    // a few times the ring, so a stalled reader has to be left behind
+    private static final long LENGTH = 3L * Environment.SHARED_DECODE_BUFFER_MB * 1024 * 1024 + 12345;
+
+    private static int expected(long position) {
+        return (int) (position % 251);
+    }
+
+    private static final class Pattern extends InputStream {
+
+        private long position;
+
+        Pattern(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int read() {
+            return position == LENGTH ? -1 : expected(position++);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position == LENGTH) {
+                return -1;
+            }
+            int count = (int) Math.min(len, LENGTH - position);
+            for (int i = 0; i < count; i++) {
+                b[off + i] = (byte) expected(position++);
+            }
+            return count;
+        }
+
+    }
+
+    private final List<Long> opens = new CopyOnWriteArrayList<>();
+
+    private final SharedTranscodes.Upstream upstream = (ticket, offset) -> {
+        opens.add(offset);
+        return new Pattern(offset);
+    };
+
+    private static TranscodeAdmission.Ticket ticket(String guildId) {
+        return TranscodeAdmission.INSTANCE.newTicket(guildId);
+    }
+
+    private static long readChecked(InputStream stream, long position) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                assertEquals("byte " + position, expected(position), buffer[i] & 0xFF);
+                position++;
+            }
+        }
+        return position;
+    }
+
+    @Test
+    public void stalledReaderDoesNotHoldUpOthers() throws Exception {
+        InputStream fast = SharedTranscodes.INSTANCE.open("stalled", ticket("fast"), upstream);
+        InputStream stalled = SharedTranscodes.INSTANCE.open("stalled", ticket("stalled"), upstream);
+        byte[] start = new byte[1000];
+        stalled.readNBytes(start, 0, start.length);
+
+        long end = CompletableFuture.supplyAsync(() -> {
+            try (fast) {
+                return readChecked(fast, 0);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }).get(30, TimeUnit.SECONDS);
+        assertEquals(LENGTH, end);
+
+        // picks up from where it stopped, on its own upstream
+        try (stalled) {
+            assertEquals(LENGTH, readChecked(stalled, start.length));
+        }
+        assertEquals(ImmutableList.of(0L, 1000L), opens);
+    }
+
+    @Test
+    public void readerThatNeverReadsClosesCleanly() throws Exception {
+        InputStream idle = SharedTranscodes.INSTANCE.open("idle", ticket("idle"), upstream);
+        try (InputStream fast = SharedTranscodes.INSTANCE.open("idle", ticket("fast"), upstream)) {
+            assertEquals(LENGTH, readChecked(fast, 0));
+        }
+        idle.close();
+
+        assertEquals(ImmutableList.of(0L), opens);
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube.lava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.junit.Test;
+
+public class OurTubeAudioTrackTest {
+
+    // hands out at most a few bytes per read, so samples get split across reads
+    private static final class TrickleChannel implements ReadableByteChannel {
+
+        private final ByteBuffer data;
+        private final int maxRead;
+
+        TrickleChannel(byte[] data, int maxRead) {
+            this.data = ByteBuffer.wrap(data);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(maxRead, Math.min(dst.remaining(), data.remaining()));
+            ByteBuffer slice = data.slice();
+            slice.limit(count);
+            dst.put(slice);
+            data.position(data.position() + count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static byte[] nativeBytes(short... samples) {
+        ByteBuffer bytes = ByteBuffer.allocate(samples.length * Short.BYTES).order(ByteOrder.nativeOrder());
+        bytes.asShortBuffer().put(samples);
+        return bytes.array();
+    }
+
+    private static short[] drain(ShortBuffer samples) {
+        short[] out = new short[samples.remaining()];
+        samples.get(out);
+        return out;
+    }
+
+    @Test
+    public void fillsAcrossShortReads() throws IOException {
+        short[] expected = { 1, -1, Short.MAX_VALUE, Short.MIN_VALUE, 0x1234, -0x1234, 42, 7 };
+        ByteBuffer bytes = ByteBuffer.allocateDirect(expected.length * Short.BYTES).order(ByteOrder.nativeOrder());
+        ShortBuffer samples = bytes.asShortBuffer();
+
+        boolean eos = OurTubeAudioTrack.fillSamples(new TrickleChannel(nativeBytes(expected), 3), bytes, samples);
+
+        assertFalse(eos);
+        assertArrayEquals(expected, drain(samples));
+    }
+
+    @Test
+    public void endsWithPartialBuffer() throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(16).order(ByteOrder.nativeOrder());
+        ShortBuffer samples = bytes.asShortBuffer();
+        ReadableByteChannel source = new TrickleChannel(nativeBytes((short) 5, (short) 6, (short) 7), 4);
+
+        boolean eos = OurTubeAudioTrack.fillSamples(source, bytes, samples);
+
+        assertTrue(eos);
+        assertArrayEquals(new short[] { 5, 6, 7 }, drain(samples));
+    }
+
+    @Test
+    public void dropsTrailingHalfSample() throws IOException {
+        byte[] data = nativeBytes((short) 300, (short) -300);
+        byte[] odd = new byte[data.length + 1];
+        System.arraycopy(data, 0, odd, 0, data.length);
+        odd[data.length] = 0x7F;
+        ByteBuffer bytes = ByteBuffer.allocateDirect(16).order(ByteOrder.nativeOrder());
+        ShortBuffer samples = bytes.asShortBuffer();
+
+        boolean eos = OurTubeAudioTrack.fillSamples(new TrickleChannel(odd, 16), bytes, samples);
+
+        assertTrue(eos);
+        assertArrayEquals(new short[] { 300, -300 }, drain(samples));
+    }
+
+    @Test
+    public void reusesBuffersBetweenFills() throws IOException {
+        short[] all = new short[12];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (short) (i * 1000 - 5000);
+        }
+        ByteBuffer bytes = ByteBuffer.allocateDirect(8 * Short.BYTES).order(ByteOrder.nativeOrder());
+        ShortBuffer samples = bytes.asShortBuffer();
+        ReadableByteChannel source = new TrickleChannel(nativeBytes(all), 5);
+
+        assertFalse(OurTubeAudioTrack.fillSamples(source, bytes, samples));
+        assertEquals(8, samples.remaining());
+        short[] first = drain(samples);
+        assertTrue(OurTubeAudioTrack.fillSamples(source, bytes, samples));
+        short[] second = drain(samples);
+
+        short[] joined = new short[first.length + second.length];
+        System.arraycopy(first, 0, joined, 0, first.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        assertArrayEquals(all, joined);
+    }
+
+}
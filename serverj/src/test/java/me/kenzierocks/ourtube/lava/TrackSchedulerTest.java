@@ -0,0 +1,366 @@
+/*
+ * This file is part of OurTube-serverj, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) Octavia Togami (octylFractal) <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package me.kenzierocks.ourtube.lava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.Subscribe;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo;
+
+import discord4j.core.object.util.Snowflake;
+import me.kenzierocks.ourtube.Log;
+import me.kenzierocks.ourtube.MemberNames;
+import me.kenzierocks.ourtube.YoutubeStreams;
+import me.kenzierocks.ourtube.guildqueue.GuildQueue;
+import me.kenzierocks.ourtube.guildqueue.PushSong;
+import me.kenzierocks.ourtube.guildqueue.PushSongBatch;
+
+public class TrackSchedulerTest {
+
+    private static final Logger LOGGER = Log.get();
+
+    private static final AtomicLong NEXT_GUILD = new AtomicLong(1);
+
+    private static final Snowflake ALICE = Snowflake.of(101);
+    private static final Snowflake BOB = Snowflake.of(102);
+    private static final Snowflake CAROL = Snowflake.of(103);
+
+    private final Snowflake guildId = Snowflake.of(NEXT_GUILD.getAndIncrement());
+    // everything the player was asked to start, in order
+    private final List<String> started = new ArrayList<>();
+    private AudioTrack playing;
+    private AudioPlayer player;
+    private TrackScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        for (Snowflake userId : ImmutableList.of(ALICE, BOB, CAROL)) {
+            MemberNames.INSTANCE.nameSeen(guildId, userId, "user" + userId.asString());
+        }
+        player = (AudioPlayer) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { AudioPlayer.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "startTrack":
+                            return startTrack((AudioTrack) args[0], (Boolean) args[1]);
+                        case "getPlayingTrack":
+                            return playing;
+                        case "getVolume":
+                            return 100;
+                        default:
+                            return null;
+                    }
+                });
+        scheduler = new TrackScheduler(guildId, player);
+    }
+
+    private synchronized boolean startTrack(AudioTrack track, boolean noInterrupt) {
+        if (track == null || (noInterrupt && playing != null)) {
+            return false;
+        }
+        playing = track;
+        started.add(track.getIdentifier());
+        return true;
+    }
+
+    private static AudioTrack track(String songId, long queueTimeMs) {
+        return new OurTubeAudioTrack(new AudioTrackInfo(songId, "author", 1000, songId, false, songId),
+                OurTubeAudioTrack.OurTubeMetadata.create("submitter", Instant.ofEpochMilli(queueTimeMs)),
+                YoutubeStreams.PCM_FORMAT, null, null, startMs -> null, null);
+    }
+
+    private void add(Snowflake userId, String songId, long queueTimeMs) throws Exception {
+        scheduler.addTrack(userId, track(songId, queueTimeMs)).get(10, TimeUnit.SECONDS);
+    }
+
+    private void skip() throws Exception {
+        scheduler.skipTrack().get(10, TimeUnit.SECONDS);
+    }
+
+    private synchronized List<String> started() {
+        return ImmutableList.copyOf(started);
+    }
+
+    @Test
+    public void playsOldestHeadFirst() throws Exception {
+        add(ALICE, "a1", 1);
+        add(BOB, "b2", 2);
+        add(BOB, "b3", 3);
+        add(ALICE, "a4", 4);
+        scheduler.setListeners(ImmutableSet.of(ALICE, BOB)).get(10, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 4; i++) {
+            skip();
+        }
+
+        assertEquals(ImmutableList.of("a1", "b2", "b3", "a4"), started());
+    }
+
+    @Test
+    public void lateEndDoesNotReplaceNewerTrack() throws Exception {
+        add(ALICE, "a1", 1);
+        add(ALICE, "a2", 2);
+        add(ALICE, "a3", 3);
+        scheduler.setListeners(ImmutableSet.of(ALICE)).get(10, TimeUnit.SECONDS);
+        skip();
+        AudioTrack first = playing;
+        skip();
+
+        // a1's end arriving after a2 was already started
+        scheduler.onTrackEnd(player, first, AudioTrackEndReason.FINISHED);
+        scheduler.setListeners(ImmutableSet.of(ALICE)).get(10, TimeUnit.SECONDS);
+
+        assertEquals(ImmutableList.of("a1", "a2"), started());
+    }
+
+    @Test
+    public void holdsQueuesOfThoseNotListening() throws Exception {
+        add(CAROL, "c0", 0);
+        add(ALICE, "a1", 1);
+        add(BOB, "b2", 2);
+        scheduler.setListeners(ImmutableSet.of(ALICE, BOB)).get(10, TimeUnit.SECONDS);
+
+        skip();
+        skip();
+        // nothing left from those listening
+        skip();
+        assertEquals(ImmutableList.of("a1", "b2"), started());
+
+        scheduler.listenerJoined(CAROL).get(10, TimeUnit.SECONDS);
+        skip();
+        assertEquals(ImmutableList.of("a1", "b2", "c0"), started());
+    }
+
+    @Test
+    public void skipsQueueOfListenerWhoLeft() throws Exception {
+        add(ALICE, "a1", 1);
+        add(BOB, "b2", 2);
+        add(ALICE, "a3", 3);
+        add(BOB, "b4", 4);
+        scheduler.setListeners(ImmutableSet.of(ALICE, BOB)).get(10, TimeUnit.SECONDS);
+
+        skip();
+        scheduler.listenerLeft(BOB).get(10, TimeUnit.SECONDS);
+        skip();
+        skip();
+        assertEquals(ImmutableList.of("a1", "a3"), started());
+
+        // rejoining picks up where they were
+        scheduler.listenerJoined(BOB).get(10, TimeUnit.SECONDS);
+        skip();
+        skip();
+        assertEquals(ImmutableList.of("a1", "a3", "b2", "b4"), started());
+    }
+
+    @Test
+    public void newerHeadWaitsBehindOlderOne() throws Exception {
+        scheduler.setListeners(ImmutableSet.of(ALICE, BOB)).get(10, TimeUnit.SECONDS);
+        // starts at once, nothing else is playing
+        add(ALICE, "a1", 1);
+        add(ALICE, "a5", 5);
+        add(BOB, "b3", 3);
+        add(BOB, "b9", 9);
+        add(ALICE, "a7", 7);
+
+        for (int i = 0; i < 4; i++) {
+            skip();
+        }
+
+        assertEquals(ImmutableList.of("a1", "b3", "a5", "a7", "b9"), started());
+    }
+
+    @Test
+    public void manyListeners() throws Exception {
+        ImmutableSet.Builder<Snowflake> listeners = ImmutableSet.builder();
+        List<String> expected = new ArrayList<>();
+        // 500 listeners, each queueing two songs, interleaved in time
+        for (int user = 0; user < 500; user++) {
+            Snowflake userId = Snowflake.of(1000 + user);
+            listeners.add(userId);
+            MemberNames.INSTANCE.nameSeen(guildId, userId, "listener" + user);
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int user = 499; user >= 0; user--) {
+                long time = round * 500 + (499 - user);
+                String songId = "s" + time;
+                expected.add(songId);
+                add(Snowflake.of(1000 + user), songId, time);
+            }
+        }
+        scheduler.setListeners(listeners.build()).get(10, TimeUnit.SECONDS);
+
+        for (int i = 0; i < expected.size(); i++) {
+            skip();
+        }
+
+        assertEquals(expected, started());
+    }
+
+    @Test
+    public void pickAndReindexTimingsWithManyListeners() throws Exception {
+        int listenerCount = 500;
+        ImmutableSet.Builder<Snowflake> listeners = ImmutableSet.builder();
+        for (int user = 0; user < listenerCount; user++) {
+            Snowflake userId = Snowflake.of(1000 + user);
+            listeners.add(userId);
+            MemberNames.INSTANCE.nameSeen(guildId, userId, "listener" + user);
+            for (int round = 0; round < 4; round++) {
+                add(userId, "s" + user + "-" + round, round * listenerCount + user);
+            }
+        }
+        scheduler.setListeners(listeners.build()).get(10, TimeUnit.SECONDS);
+        // warm up, so the timings aren't mostly class loading and JIT
+        for (int i = 0; i < listenerCount; i++) {
+            skip();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < listenerCount; i++) {
+            skip();
+        }
+        long pickNanos = (System.nanoTime() - start) / listenerCount;
+
+        start = System.nanoTime();
+        for (int user = 0; user < listenerCount; user++) {
+            Snowflake userId = Snowflake.of(1000 + user);
+            scheduler.listenerLeft(userId).get(10, TimeUnit.SECONDS);
+            scheduler.listenerJoined(userId).get(10, TimeUnit.SECONDS);
+        }
+        long reindexNanos = (System.nanoTime() - start) / (2 * listenerCount);
+
+        LOGGER.info("{} listeners: {}us per pick, {}us per reindex", listenerCount,
+                TimeUnit.NANOSECONDS.toMicros(pickNanos), TimeUnit.NANOSECONDS.toMicros(reindexNanos));
+        // about a round trip through the mailbox. milliseconds would mean it's blocking again
+        assertTrue("pick took " + pickNanos + "ns", pickNanos < TimeUnit.MILLISECONDS.toNanos(5));
+        assertTrue("reindex took " + reindexNanos + "ns", reindexNanos < TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(2 * listenerCount, started().size());
+    }
+
+    private List<Object> recordQueueEvents() {
+        List<Object> events = new CopyOnWriteArrayList<>();
+        GuildQueue.INSTANCE.events.subscribe(guildId, new Object() {
+
+            @Subscribe
+            public void onPushSong(PushSong event) {
+                events.add(event);
+            }
+
+            @Subscribe
+            public void onPushSongBatch(PushSongBatch event) {
+                events.add(event);
+            }
+        });
+        return events;
+    }
+
+    @Test
+    public void importSendsOneEvent() throws Exception {
+        List<Object> events = recordQueueEvents();
+        List<String> songIds = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            songIds.add("song" + i);
+        }
+
+        scheduler.addSongs(ALICE, songIds).get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, events.size());
+        PushSongBatch batch = (PushSongBatch) events.get(0);
+        assertEquals(songIds, batch.getYoutubeIds());
+        assertEquals("user" + ALICE.asString(), batch.getSubmitter());
+        assertEquals(5000, scheduler.allEntriesStream().count());
+    }
+
+    @Test
+    public void importIsFasterThanAddingOneByOne() throws Exception {
+        int count = 5000;
+        List<String> songIds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            songIds.add("song" + i);
+        }
+        // warm up both paths
+        scheduler.addSongs(CAROL, songIds.subList(0, 500)).get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < 500; i++) {
+            add(CAROL, "warm" + i, i);
+        }
+
+        long start = System.nanoTime();
+        scheduler.addSongs(ALICE, songIds).get(10, TimeUnit.SECONDS);
+        long batchNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            add(BOB, songIds.get(i), i);
+        }
+        long oneByOneNanos = System.nanoTime() - start;
+
+        LOGGER.info("Importing {} songs: {}ms as a batch, {}ms one by one", count,
+                TimeUnit.NANOSECONDS.toMillis(batchNanos), TimeUnit.NANOSECONDS.toMillis(oneByOneNanos));
+        assertTrue("batch took " + batchNanos + "ns, one by one " + oneByOneNanos + "ns",
+                batchNanos < oneByOneNanos);
+        assertEquals(2 * count + 1000, scheduler.allEntriesStream().count());
+    }
+
+    @Test
+    public void emptyImportSendsNothing() throws Exception {
+        List<Object> events = recordQueueEvents();
+
+        scheduler.addSongs(ALICE, ImmutableList.of()).get(10, TimeUnit.SECONDS);
+
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void queueEventsStayInOrder() throws Exception {
+        List<Object> events = recordQueueEvents();
+
+        add(ALICE, "a1", 1);
+        scheduler.addSongs(BOB, ImmutableList.of("b1", "b2")).get(10, TimeUnit.SECONDS);
+        add(ALICE, "a2", 2);
+
+        assertEquals(3, events.size());
+        assertEquals("a1", ((PushSong) events.get(0)).getYoutubeId());
+        assertEquals(ImmutableList.of("b1", "b2"), ((PushSongBatch) events.get(1)).getYoutubeIds());
+        assertEquals("a2", ((PushSong) events.get(2)).getYoutubeId());
+    }
+
+}